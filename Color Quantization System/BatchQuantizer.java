@@ -0,0 +1,326 @@
+
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.function.Supplier;
+
+/**
+ * Quantizes every BMP in a directory (or matching a glob) into an output
+ * directory. Each image goes through three pipelined stages: decode and
+ * encode run on an I/O thread pool and quantization on a fixed pool sized
+ * to the CPU count, so one image can be read while another is quantized and
+ * a third is written. A semaphore admits at most maxInFlight images into the
+ * pipeline, which bounds both the stage queues and the number of decoded
+ * images held in memory.
+ *
+ * Usage: java BatchQuantizer &lt;directory or glob&gt; &lt;generator&gt;
+ * &lt;numColors&gt; &lt;output directory&gt; [maxInFlight]
+ */
+public class BatchQuantizer {
+    private Supplier<ColorMapGenerator_Inter> generators;
+    private int numColors;
+    private int maxInFlight;
+    private int cpuThreads;
+    private int ioThreads;
+
+    public BatchQuantizer(Supplier<ColorMapGenerator_Inter> generators, int numColors) {
+
+        this(generators, numColors, 2 * Runtime.getRuntime().availableProcessors(),
+                Runtime.getRuntime().availableProcessors(), 4);
+
+    }
+
+    // generators supplies a fresh generator for every image; at most
+    // maxInFlight images are decoded and not yet written at any time
+    public BatchQuantizer(Supplier<ColorMapGenerator_Inter> generators, int numColors, int maxInFlight,
+            int cpuThreads, int ioThreads) {
+
+        if (numColors <= 0) {
+            throw new IllegalArgumentException("Number of colors must be positive");
+        }
+        if (maxInFlight <= 0 || cpuThreads <= 0 || ioThreads <= 0) {
+            throw new IllegalArgumentException("Pool sizes must be positive");
+        }
+        this.generators = generators;
+        this.numColors = numColors;
+        this.maxInFlight = maxInFlight;
+        this.cpuThreads = cpuThreads;
+        this.ioThreads = ioThreads;
+
+    }
+
+    /**
+     * The outcome and stage timings of one image.
+     */
+    public static final class Result {
+        private final Path input;
+        private final Path output;
+        private long pixels;
+        private long decodeNanos;
+        private long quantizeNanos;
+        private long encodeNanos;
+        private Throwable error;
+
+        Result(Path input, Path output) {
+            this.input = input;
+            this.output = output;
+        }
+
+        public Path getInput() {
+            return input;
+        }
+
+        public Path getOutput() {
+            return output;
+        }
+
+        public long getPixels() {
+            return pixels;
+        }
+
+        public long getDecodeNanos() {
+            return decodeNanos;
+        }
+
+        public long getQuantizeNanos() {
+            return quantizeNanos;
+        }
+
+        public long getEncodeNanos() {
+            return encodeNanos;
+        }
+
+        // why the image failed, or null if it was written
+        public Throwable getError() {
+            return error;
+        }
+
+        public boolean succeeded() {
+            return error == null;
+        }
+    }
+
+    /**
+     * Quantizes every input into outputDirectory, keeping each file name.
+     * Failures are recorded in the results rather than stopping the batch.
+     * No output may be one of the inputs, so outputDirectory must not be a
+     * directory the inputs come from, and no two inputs may share a file
+     * name. Both are checked before any image is read.
+     *
+     * @param inputs          the BMP files to quantize
+     * @param outputDirectory where to write the results; created if missing
+     * @return one result per input, in input order
+     * @throws IllegalArgumentException if an output would overwrite an input
+     *                                  or another output
+     * @throws IOException              if the output directory cannot be
+     *                                  created
+     * @throws InterruptedException     if interrupted while waiting for a slot
+     */
+    public List<Result> run(List<Path> inputs, Path outputDirectory) throws IOException, InterruptedException {
+        Files.createDirectories(outputDirectory);
+        List<Path> outputs = new ArrayList<>();
+        Set<Path> seen = new HashSet<>();
+        for (Path input : inputs) {
+            Path output = outputDirectory.resolve(input.getFileName());
+            Path normalized = output.toAbsolutePath().normalize();
+            if (normalized.equals(input.toAbsolutePath().normalize())
+                    || (Files.exists(output) && Files.isSameFile(input, output))) {
+                throw new IllegalArgumentException("Output would overwrite input " + input);
+            }
+            if (!seen.add(normalized)) {
+                throw new IllegalArgumentException("More than one input would be written to " + output);
+            }
+            outputs.add(output);
+        }
+        ExecutorService io = Executors.newFixedThreadPool(ioThreads);
+        ExecutorService cpu = Executors.newFixedThreadPool(cpuThreads);
+        Semaphore inFlight = new Semaphore(maxInFlight);
+        List<Result> results = new ArrayList<>();
+        List<CompletableFuture<Void>> pending = new ArrayList<>();
+
+        try {
+            for (int i = 0; i < inputs.size(); i++) {
+                Result result = new Result(inputs.get(i), outputs.get(i));
+                results.add(result);
+
+                // blocks once maxInFlight images are in the pipeline
+                inFlight.acquire();
+                CompletableFuture<Void> done = CompletableFuture
+                        .supplyAsync(() -> decode(result), io)
+                        .thenApplyAsync(raster -> quantize(result, raster), cpu)
+                        .thenAcceptAsync(quantized -> encode(result, quantized), io)
+                        .handle((ignored, error) -> {
+                            if (error != null) {
+                                result.error = (error.getCause() != null) ? error.getCause() : error;
+                            }
+                            inFlight.release();
+                            return null;
+                        });
+                pending.add(done);
+            }
+            CompletableFuture.allOf(pending.toArray(new CompletableFuture<?>[0])).join();
+        } finally {
+            io.shutdown();
+            cpu.shutdown();
+        }
+        return results;
+    }
+
+    private PackedRaster decode(Result result) {
+        long start = System.nanoTime();
+        try {
+            PackedRaster raster = BmpReader.read(result.input);
+            result.pixels = raster.size();
+            return raster;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            result.decodeNanos = System.nanoTime() - start;
+        }
+    }
+
+    private QuantizedImage quantize(Result result, PackedRaster raster) {
+        long start = System.nanoTime();
+        try {
+            return new ColorQuantizer(raster, generators.get()).quantize(numColors);
+        } finally {
+            result.quantizeNanos = System.nanoTime() - start;
+        }
+    }
+
+    private void encode(Result result, QuantizedImage quantized) {
+        long start = System.nanoTime();
+        try {
+            quantized.writeBMP(result.output.toString(), false);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            result.encodeNanos = System.nanoTime() - start;
+        }
+    }
+
+    /**
+     * Lists the BMP files to quantize. A directory gives every .bmp file in
+     * it; anything else is taken as a glob whose last component is matched
+     * against the files of its parent directory, such as "frames/*.bmp".
+     *
+     * @param directoryOrGlob a directory or a glob
+     * @return the matching files, sorted by name
+     * @throws IOException if the directory cannot be listed
+     */
+    public static List<Path> findInputs(String directoryOrGlob) throws IOException {
+        Path path = Paths.get(directoryOrGlob);
+        Path directory;
+        PathMatcher matcher;
+        if (Files.isDirectory(path)) {
+            directory = path;
+            matcher = path.getFileSystem().getPathMatcher("glob:*.{bmp,BMP}");
+        } else {
+            directory = (path.getParent() != null) ? path.getParent() : Paths.get(".");
+            matcher = path.getFileSystem().getPathMatcher("glob:" + path.getFileName());
+        }
+
+        List<Path> inputs = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                if (Files.isRegularFile(file) && matcher.matches(file.getFileName())) {
+                    inputs.add(file);
+                }
+            }
+        }
+        Collections.sort(inputs);
+        return inputs;
+    }
+
+    /**
+     * Returns a supplier of generators by name: bucketing, clustering,
+     * mediancut, octree, wu, minibatch or hue. Clustering and mini-batch use
+     * SquaredEuclideanMetric.
+     *
+     * @param name the name of a generator
+     * @return a supplier of new generators of that kind
+     */
+    public static Supplier<ColorMapGenerator_Inter> generatorNamed(String name) {
+        switch (name.toLowerCase()) {
+            case "bucketing": return BucketingMapGenerator::new;
+            case "clustering": return () -> new ClusteringMapGenerator(new SquaredEuclideanMetric());
+            case "mediancut": return MedianCutMapGenerator::new;
+            case "octree": return OctreeMapGenerator::new;
+            case "wu": return WuMapGenerator::new;
+            case "minibatch": return () -> new MiniBatchMapGenerator(new SquaredEuclideanMetric());
+            case "hue": return HueClusteringMapGenerator::new;
+            default: throw new IllegalArgumentException("Unknown generator: " + name);
+        }
+    }
+
+    // prints one line per image and the totals over the whole batch
+    public static void printReport(List<Result> results, long wallNanos, PrintStream out) {
+        long pixels = 0;
+        int failed = 0;
+        for (Result result : results) {
+            if (!result.succeeded()) {
+                failed++;
+                out.printf("%s  FAILED: %s%n", result.input, result.error);
+                continue;
+            }
+            pixels += result.pixels;
+            double totalMillis = (result.decodeNanos + result.quantizeNanos + result.encodeNanos) / 1e6;
+            out.printf("%s  %d px  decode %.1f ms  quantize %.1f ms  encode %.1f ms  %.1f MP/s%n", result.input,
+                    result.pixels, result.decodeNanos / 1e6, result.quantizeNanos / 1e6, result.encodeNanos / 1e6,
+                    result.pixels / (totalMillis * 1000));
+        }
+        double seconds = wallNanos / 1e9;
+        out.printf("%d images (%d failed), %.1f MP in %.2f s: %.1f images/s, %.1f MP/s%n", results.size(), failed,
+                pixels / 1e6, seconds, (results.size() - failed) / seconds, pixels / 1e6 / seconds);
+    }
+
+    // exits with 1 if any image failed, each failure having been reported
+    // on its own line, and with 2 if the batch could not be started at all
+    public static void main(String[] args) throws InterruptedException {
+        if (args.length < 4) {
+            System.err.println("Usage: java BatchQuantizer <directory or glob> <generator> <numColors> "
+                    + "<output directory> [maxInFlight]");
+            System.exit(2);
+        }
+        List<Result> results;
+        long start;
+        try {
+            int numColors = Integer.parseInt(args[2]);
+            BatchQuantizer batch = (args.length > 4)
+                    ? new BatchQuantizer(generatorNamed(args[1]), numColors, Integer.parseInt(args[4]),
+                            Runtime.getRuntime().availableProcessors(), 4)
+                    : new BatchQuantizer(generatorNamed(args[1]), numColors);
+
+            List<Path> inputs = findInputs(args[0]);
+            start = System.nanoTime();
+            results = batch.run(inputs, Paths.get(args[3]));
+        } catch (IllegalArgumentException | IOException e) {
+            // bad arguments, an unreadable input directory or an output
+            // directory that cannot be created; no image was written
+            System.err.println("BatchQuantizer: " + e.getMessage());
+            System.exit(2);
+            return;
+        }
+        printReport(results, System.nanoTime() - start, System.out);
+        for (Result result : results) {
+            if (!result.succeeded()) {
+                System.exit(1);
+            }
+        }
+    }
+}
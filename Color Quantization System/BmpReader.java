@@ -0,0 +1,264 @@
+
+
+import java.awt.image.BufferedImage;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.stream.IntStream;
+import javax.imageio.ImageIO;
+
+/**
+ * Reads uncompressed 24 and 32 bit BMP files straight into a PackedRaster.
+ * The file is memory-mapped and its rows are decoded with plain byte reads,
+ * bypassing ImageIO, BufferedImage and its color model conversions. Rows are
+ * stored bottom-up unless the header height is negative, and each row is
+ * padded to a multiple of four bytes. Large images are decoded in parallel,
+ * one band of rows per task.
+ *
+ * Any other kind of BMP (palettized, 16 bit or compressed) is handed to
+ * ImageIO instead.
+ *
+ * Images too large to hold at once can be read a strip of rows at a time
+ * with a StripReader, which only keeps one strip in memory.
+ */
+public final class BmpReader {
+    // images with at least this many pixels are decoded in parallel
+    static final int PARALLEL_THRESHOLD = 1 << 20;
+    // rows per parallel task
+    private static final int BAND_HEIGHT = 64;
+
+    private static final int BI_RGB = 0;
+    private static final int BI_BITFIELDS = 3;
+
+    private BmpReader() {
+
+    }
+
+    public static PackedRaster read(String fileName) throws IOException {
+        return read(Paths.get(fileName));
+    }
+
+    /**
+     * Reads a BMP file.
+     *
+     * @param path the file to read
+     * @return the pixels of the image, with row 0 at the top
+     * @throws IOException if the file cannot be read or is not an image
+     */
+    public static PackedRaster read(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long fileSize = channel.size();
+            if (fileSize > Integer.MAX_VALUE) {
+                throw new IOException("BMP file too large to map: " + path);
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, fileSize);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+            Header header = Header.parse(buffer, fileSize);
+            if (header == null) {
+                return readWithImageIO(path);
+            }
+            if ((long) header.width * header.height > Integer.MAX_VALUE) {
+                throw new IOException("BMP has too many pixels for one raster; read it in strips");
+            }
+            return decode(buffer, header);
+        }
+    }
+
+    private static PackedRaster readWithImageIO(Path path) throws IOException {
+        BufferedImage image = ImageIO.read(path.toFile());
+        if (image == null) {
+            throw new IOException("Not a readable image: " + path);
+        }
+        return Util.convertBitmapToRaster(image);
+    }
+
+    private static PackedRaster decode(MappedByteBuffer buffer, Header header) {
+        int width = header.width;
+        int height = header.height;
+        int[] data = new int[width * height];
+
+        int bands = (height + BAND_HEIGHT - 1) / BAND_HEIGHT;
+        IntStream rangeOfBands = IntStream.range(0, bands);
+        if (data.length >= PARALLEL_THRESHOLD) {
+            rangeOfBands = rangeOfBands.parallel();
+        }
+        // only absolute reads are used, so tasks can share the buffer
+        rangeOfBands.forEach(band -> {
+            int toRow = Math.min(height, (band + 1) * BAND_HEIGHT);
+            for (int y = band * BAND_HEIGHT; y < toRow; y++) {
+                int fileRow = header.topDown ? y : height - 1 - y;
+                decodeRow(buffer, header.dataOffset + fileRow * header.stride, header.bytesPerPixel, data,
+                        y * width, width);
+            }
+        });
+        return new PackedRaster(width, height, data);
+    }
+
+    private static void decodeRow(ByteBuffer buffer, int position, int bytesPerPixel, int[] data, int offset,
+            int width) {
+        if (bytesPerPixel == 4) {
+            // B, G, R, A read as one little-endian int is 0xAARRGGBB
+            for (int x = 0; x < width; x++) {
+                data[offset + x] = buffer.getInt(position + 4 * x) & 0xFFFFFF;
+            }
+        } else {
+            for (int x = 0; x < width; x++) {
+                int p = position + 3 * x;
+                int blue = buffer.get(p) & 0xFF;
+                int green = buffer.get(p + 1) & 0xFF;
+                int red = buffer.get(p + 2) & 0xFF;
+                data[offset + x] = (red << 16) | (green << 8) | blue;
+            }
+        }
+    }
+
+    // the fields of the file and info headers that decoding needs
+    private static final class Header {
+        int dataOffset;
+        int width;
+        int height;
+        boolean topDown;
+        int bytesPerPixel;
+        int stride;
+
+        // returns null when the file is a BMP this reader does not decode
+        static Header parse(ByteBuffer buffer, long fileSize) throws IOException {
+            if (fileSize < 54 || buffer.get(0) != 'B' || buffer.get(1) != 'M') {
+                return null;
+            }
+            int infoSize = buffer.getInt(14);
+            if (infoSize < 40) {
+                // OS/2 core headers use 16 bit dimensions
+                return null;
+            }
+
+            Header header = new Header();
+            header.dataOffset = buffer.getInt(10);
+            header.width = buffer.getInt(18);
+            int rawHeight = buffer.getInt(22);
+            int bitsPerPixel = buffer.getShort(28);
+            int compression = buffer.getInt(30);
+
+            if (bitsPerPixel != 24 && bitsPerPixel != 32) {
+                return null;
+            }
+            if (compression == BI_BITFIELDS) {
+                // only the usual 8-8-8 layout, with the masks right after the
+                // info header
+                if (bitsPerPixel != 32 || fileSize < 14 + 40 + 12 || buffer.getInt(54) != 0x00FF0000
+                        || buffer.getInt(58) != 0x0000FF00 || buffer.getInt(62) != 0x000000FF) {
+                    return null;
+                }
+            } else if (compression != BI_RGB) {
+                return null;
+            }
+
+            if (header.width <= 0 || rawHeight == 0 || rawHeight == Integer.MIN_VALUE) {
+                throw new IOException("Invalid BMP dimensions");
+            }
+            header.topDown = rawHeight < 0;
+            header.height = Math.abs(rawHeight);
+            header.bytesPerPixel = bitsPerPixel / 8;
+            // rows are padded to a multiple of four bytes
+            long stride = (((long) bitsPerPixel * header.width + 31) / 32) * 4;
+            if (stride > Integer.MAX_VALUE || header.dataOffset < 0
+                    || header.dataOffset + stride * header.height > fileSize) {
+                throw new IOException("Truncated BMP pixel data");
+            }
+            header.stride = (int) stride;
+            return header;
+        }
+    }
+
+    /**
+     * Reads an uncompressed 24 or 32 bit BMP file one strip of rows at a
+     * time, for images that do not fit in memory. Only the header and the
+     * current strip are held; strips can be read in any order.
+     */
+    public static final class StripReader implements Closeable {
+        // enough for the file and info headers plus the bit field masks
+        private static final int HEADER_BYTES = 14 + 40 + 12;
+
+        private final FileChannel channel;
+        private final Header header;
+        private ByteBuffer stripBuffer;
+
+        public StripReader(String fileName) throws IOException {
+            channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ);
+            try {
+                ByteBuffer headerBuffer = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+                headerBuffer.limit((int) Math.min(HEADER_BYTES, channel.size()));
+                readFully(headerBuffer, 0);
+                header = Header.parse(headerBuffer, channel.size());
+                if (header == null) {
+                    throw new IOException("Only uncompressed 24 and 32 bit BMPs can be read in strips");
+                }
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+        }
+
+        public int getWidth() {
+            return header.width;
+        }
+
+        public int getHeight() {
+            return header.height;
+        }
+
+        /**
+         * Reads rows [firstRow, firstRow + rows) of the image.
+         *
+         * @param firstRow the top row of the strip, counted from the top
+         * @param rows     the number of rows to read
+         * @return a raster holding just those rows
+         * @throws IOException if the file cannot be read
+         */
+        public PackedRaster readStrip(int firstRow, int rows) throws IOException {
+            if (firstRow < 0 || rows <= 0 || firstRow + rows > header.height) {
+                throw new IllegalArgumentException("Strip lies outside the image");
+            }
+            int bytes = Math.multiplyExact(rows, header.stride);
+            if (stripBuffer == null || stripBuffer.capacity() < bytes) {
+                stripBuffer = ByteBuffer.allocateDirect(bytes).order(ByteOrder.LITTLE_ENDIAN);
+            }
+            stripBuffer.clear().limit(bytes);
+
+            // the rows of a strip are contiguous in the file, bottom row
+            // first unless the image is stored top-down
+            int firstFileRow = header.topDown ? firstRow : header.height - firstRow - rows;
+            readFully(stripBuffer, header.dataOffset + (long) firstFileRow * header.stride);
+
+            int width = header.width;
+            int[] data = new int[Math.multiplyExact(width, rows)];
+            for (int r = 0; r < rows; r++) {
+                int bufferRow = header.topDown ? r : rows - 1 - r;
+                decodeRow(stripBuffer, bufferRow * header.stride, header.bytesPerPixel, data, r * width, width);
+            }
+            return new PackedRaster(width, rows, data);
+        }
+
+        private void readFully(ByteBuffer buffer, long position) throws IOException {
+            while (buffer.hasRemaining()) {
+                int read = channel.read(buffer, position);
+                if (read < 0) {
+                    throw new IOException("Unexpected end of BMP file");
+                }
+                position += read;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
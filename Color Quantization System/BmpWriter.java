@@ -0,0 +1,446 @@
+
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes palettized BMP files straight from a palette and one palette index
+ * per pixel. The bit depth is the smallest of 1, 4 or 8 bits that holds the
+ * palette. 4 and 8 bit images can optionally be run-length encoded (RLE4 and
+ * RLE8), which shrinks the flat areas quantized images are full of even
+ * further.
+ *
+ * Output goes through a FileChannel in blocks, using a direct buffer that is
+ * allocated once per thread and reused for every file. A QuantizedImage is
+ * written from its packed index rows, without expanding it to a byte per
+ * pixel first.
+ *
+ * Images too large to hold at once can be written a strip of rows at a time
+ * with a StripWriter.
+ */
+public final class BmpWriter {
+    private static final int FILE_HEADER_SIZE = 14;
+    private static final int INFO_HEADER_SIZE = 40;
+    private static final int BI_RGB = 0;
+    private static final int BI_RLE8 = 1;
+    private static final int BI_RLE4 = 2;
+
+    // longest run or literal a single RLE code can describe
+    private static final int MAX_RUN = 255;
+
+    // the size fields of the headers are 32 bit; they are kept below 2 GB
+    // since many readers take them as signed
+    static final long MAX_FILE_SIZE = Integer.MAX_VALUE;
+
+    private static final int BLOCK_SIZE = 1 << 16;
+    private static final ThreadLocal<ByteBuffer> BLOCKS =
+            ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(BLOCK_SIZE).order(ByteOrder.LITTLE_ENDIAN));
+
+    private BmpWriter() {
+
+    }
+
+    /**
+     * Returns the bits per pixel an indexed BMP needs for a palette.
+     *
+     * @param paletteSize the number of palette entries, from 1 to 256
+     * @return 1, 4 or 8
+     */
+    public static int bitsPerPixel(int paletteSize) {
+        if (paletteSize <= 0 || paletteSize > 256) {
+            throw new IllegalArgumentException("Indexed BMPs hold 1 to 256 colors");
+        }
+        if (paletteSize <= 2) return 1;
+        if (paletteSize <= 16) return 4;
+        return 8;
+    }
+
+    public static void writeIndexed(String fileName, int width, int height, int[] paletteRGB, byte[] indices,
+            boolean compress) throws IOException {
+        writeIndexed(Paths.get(fileName), width, height, paletteRGB, indices, compress);
+    }
+
+    /**
+     * Writes an indexed BMP file.
+     *
+     * @param path       the file to write
+     * @param width      the width of the image
+     * @param height     the height of the image
+     * @param paletteRGB the packed palette colors, at most 256
+     * @param indices    the palette index of every pixel, row by row from
+     *                   the top, read as unsigned bytes
+     * @param compress   whether to run-length encode the pixels; ignored for
+     *                   1 bit images, which BMP cannot compress
+     * @throws IOException if the file cannot be written
+     */
+    public static void writeIndexed(Path path, int width, int height, int[] paletteRGB, byte[] indices,
+            boolean compress) throws IOException {
+        if (width <= 0 || height <= 0 || (long) width * height != indices.length) {
+            throw new IllegalArgumentException("Index buffer does not match the image size");
+        }
+        writeIndexed(path, width, height, paletteRGB, compress,
+                (out, y, bitsPerPixel, rle) -> writeRow(out, indices, y * width, width, bitsPerPixel, rle));
+    }
+
+    /**
+     * Writes a quantized image as an indexed BMP file, reading its packed
+     * index rows directly. Uncompressed rows whose indices take as many bits
+     * as the file's are copied as they are; other rows (2 bit indices, or
+     * run-length encoded output below 8 bits) are unpacked one row at a time
+     * into a single scratch row.
+     *
+     * @param path     the file to write
+     * @param image    an image with a palette of at most 256 colors
+     * @param compress whether to run-length encode the pixels
+     * @throws IOException if the file cannot be written
+     */
+    static void writeIndexed(Path path, QuantizedImage image, boolean compress) throws IOException {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("Image dimensions must be positive");
+        }
+        int bitsPerIndex = image.getBitsPerIndex();
+        byte[] packed = image.indexBytes();
+        int rowBytes = image.getRowBytes();
+        byte[] row = (bitsPerIndex == 8) ? null : new byte[width];
+
+        writeIndexed(path, width, height, image.getPaletteRGB(), compress, (out, y, bitsPerPixel, rle) -> {
+            if (!rle && bitsPerIndex == bitsPerPixel) {
+                out.put(packed, y * rowBytes, rowBytes);
+            } else if (row == null) {
+                writeRow(out, packed, y * rowBytes, width, bitsPerPixel, rle);
+            } else {
+                image.unpackRow(y, row);
+                writeRow(out, row, 0, width, bitsPerPixel, rle);
+            }
+        });
+    }
+
+    // the palette indices of an image, one row at a time
+    private interface RowSource {
+        // writes row y at bitsPerPixel bits per pixel, run-length encoded if
+        // rle is set, without row padding or end of line codes
+        void write(Output out, int y, int bitsPerPixel, boolean rle) throws IOException;
+    }
+
+    private static void writeIndexed(Path path, int width, int height, int[] paletteRGB, boolean compress,
+            RowSource rows) throws IOException {
+        int bitsPerPixel = bitsPerPixel(paletteRGB.length);
+        int compression = BI_RGB;
+        if (compress && bitsPerPixel == 8) compression = BI_RLE8;
+        if (compress && bitsPerPixel == 4) compression = BI_RLE4;
+
+        int dataOffset = FILE_HEADER_SIZE + INFO_HEADER_SIZE + 4 * paletteRGB.length;
+        int padding = ((bitsPerPixel * width + 31) / 32) * 4 - (bitsPerPixel * width + 7) / 8;
+        ByteBuffer block = BLOCKS.get();
+        block.clear();
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            // pixels first, since the size of compressed data is only known
+            // afterwards; the headers then go in front
+            Output out = new Output(channel, block, dataOffset);
+            // bottom row first
+            for (int y = height - 1; y >= 0; y--) {
+                rows.write(out, y, bitsPerPixel, compression != BI_RGB);
+                if (compression == BI_RGB) {
+                    // rows are padded to four bytes
+                    for (int p = 0; p < padding; p++) {
+                        out.put(0);
+                    }
+                } else {
+                    // end of line, or end of bitmap after the top row
+                    out.put(0);
+                    out.put((y == 0) ? 1 : 0);
+                }
+            }
+            out.flush();
+            long imageSize = out.position - dataOffset;
+            if (out.position > MAX_FILE_SIZE) {
+                throw new IOException("BMP file would be larger than 2 GB");
+            }
+
+            writeHeaders(channel, block, width, height, bitsPerPixel, compression, (int) imageSize, paletteRGB);
+        } finally {
+            block.clear();
+        }
+    }
+
+    // writes the file header, info header and palette at the start of the file
+    private static void writeHeaders(FileChannel channel, ByteBuffer block, int width, int height, int bitsPerPixel,
+            int compression, int imageSize, int[] paletteRGB) throws IOException {
+        int dataOffset = FILE_HEADER_SIZE + INFO_HEADER_SIZE + 4 * paletteRGB.length;
+        block.clear();
+        block.put((byte) 'B').put((byte) 'M');
+        block.putInt(dataOffset + imageSize);
+        block.putInt(0);
+        block.putInt(dataOffset);
+        block.putInt(INFO_HEADER_SIZE);
+        block.putInt(width);
+        // positive height: rows are stored bottom-up
+        block.putInt(height);
+        block.putShort((short) 1);
+        block.putShort((short) bitsPerPixel);
+        block.putInt(compression);
+        block.putInt(imageSize);
+        // 72 DPI
+        block.putInt(2835);
+        block.putInt(2835);
+        block.putInt(paletteRGB.length);
+        block.putInt(0);
+        for (int rgb : paletteRGB) {
+            // blue, green, red, reserved
+            block.putInt(rgb & 0xFFFFFF);
+        }
+        block.flip();
+        long position = 0;
+        while (block.hasRemaining()) {
+            position += channel.write(block, position);
+        }
+        block.clear();
+    }
+
+    // one row of unpacked indices starting at rowStart, either packed most
+    // significant bits first or run-length encoded
+    private static void writeRow(Output out, byte[] indices, int rowStart, int width, int bitsPerPixel, boolean rle)
+            throws IOException {
+        if (rle) {
+            writeRunLengthRow(out, indices, rowStart, width, bitsPerPixel == 4);
+        } else if (bitsPerPixel == 8) {
+            out.put(indices, rowStart, width);
+        } else {
+            int pixelsPerByte = 8 / bitsPerPixel;
+            for (int x = 0; x < width; x += pixelsPerByte) {
+                int packed = 0;
+                for (int k = 0; k < pixelsPerByte; k++) {
+                    int index = (x + k < width) ? indices[rowStart + x + k] & 0xFF : 0;
+                    packed |= index << (8 - bitsPerPixel * (k + 1));
+                }
+                out.put(packed);
+            }
+        }
+    }
+
+    // one RLE8 or RLE4 row. Runs of three or more equal pixels become encoded
+    // runs; the pixels between them become absolute runs, or single-pixel
+    // encoded runs when there are fewer than three.
+    private static void writeRunLengthRow(Output out, byte[] indices, int rowStart, int width, boolean fourBit)
+            throws IOException {
+        int x = 0;
+        while (x < width) {
+            int run = runLength(indices, rowStart, x, width);
+            if (run >= 3) {
+                int index = indices[rowStart + x] & 0xFF;
+                out.put(run);
+                out.put(fourBit ? (index << 4) | index : index);
+                x += run;
+                continue;
+            }
+
+            // collect pixels up to the next run worth encoding
+            int literalEnd = x;
+            while (literalEnd < width && literalEnd - x < MAX_RUN
+                    && runLength(indices, rowStart, literalEnd, width) < 3) {
+                literalEnd++;
+            }
+            int literal = literalEnd - x;
+            if (literal < 3) {
+                for (int p = x; p < literalEnd; p++) {
+                    int index = indices[rowStart + p] & 0xFF;
+                    out.put(1);
+                    out.put(fourBit ? index << 4 : index);
+                }
+            } else {
+                out.put(0);
+                out.put(literal);
+                int bytes;
+                if (fourBit) {
+                    bytes = (literal + 1) / 2;
+                    for (int p = x; p < literalEnd; p += 2) {
+                        int high = indices[rowStart + p] & 0xFF;
+                        int low = (p + 1 < literalEnd) ? indices[rowStart + p + 1] & 0xFF : 0;
+                        out.put((high << 4) | low);
+                    }
+                } else {
+                    bytes = literal;
+                    out.put(indices, rowStart + x, literal);
+                }
+                // absolute runs end on a 16 bit boundary
+                if ((bytes & 1) != 0) {
+                    out.put(0);
+                }
+            }
+            x = literalEnd;
+        }
+    }
+
+    // how many pixels from x on equal the one at x, at most MAX_RUN
+    private static int runLength(byte[] indices, int rowStart, int x, int width) {
+        byte value = indices[rowStart + x];
+        int end = x + 1;
+        while (end < width && end - x < MAX_RUN && indices[rowStart + end] == value) {
+            end++;
+        }
+        return end - x;
+    }
+
+    // buffered sequential writes at absolute file positions
+    private static final class Output {
+        private final FileChannel channel;
+        private final ByteBuffer block;
+        long position;
+
+        Output(FileChannel channel, ByteBuffer block, long position) {
+            this.channel = channel;
+            this.block = block;
+            this.position = position;
+        }
+
+        void put(int value) throws IOException {
+            if (!block.hasRemaining()) {
+                flush();
+            }
+            block.put((byte) value);
+        }
+
+        void put(byte[] bytes, int offset, int length) throws IOException {
+            while (length > 0) {
+                if (!block.hasRemaining()) {
+                    flush();
+                }
+                int chunk = Math.min(length, block.remaining());
+                block.put(bytes, offset, chunk);
+                offset += chunk;
+                length -= chunk;
+            }
+        }
+
+        void flush() throws IOException {
+            block.flip();
+            while (block.hasRemaining()) {
+                position += channel.write(block, position);
+            }
+            block.clear();
+        }
+    }
+
+    /**
+     * Writes an uncompressed BMP file a strip of rows at a time, so an image
+     * never has to be held in memory all at once. Palettes of up to 256
+     * colors give an indexed file, larger ones a 24 bit file. The headers are
+     * written up front, and strips may arrive in any order.
+     */
+    public static final class StripWriter implements Closeable {
+        private final FileChannel channel;
+        private final ByteBuffer block = ByteBuffer.allocateDirect(BLOCK_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        private final int width;
+        private final int height;
+        private final int bitsPerPixel;
+        private final long stride;
+        private final long dataOffset;
+
+        /**
+         * Returns the size of the file a StripWriter writes for an image:
+         * indexed for palettes of up to 256 colors, 24 bit otherwise.
+         *
+         * @param width       the width of the image
+         * @param height      the height of the image
+         * @param paletteSize the number of palette colors
+         * @return the file size in bytes
+         */
+        public static long fileSize(int width, int height, int paletteSize) {
+            int bitsPerPixel = (paletteSize <= 256) ? BmpWriter.bitsPerPixel(paletteSize) : 24;
+            int paletteBytes = (bitsPerPixel == 24) ? 0 : 4 * paletteSize;
+            long stride = (((long) bitsPerPixel * width + 31) / 32) * 4;
+            return FILE_HEADER_SIZE + INFO_HEADER_SIZE + paletteBytes + stride * height;
+        }
+
+        /**
+         * @param fileName   the file to write
+         * @param width      the width of the whole image
+         * @param height     the height of the whole image
+         * @param paletteRGB the packed palette colors every strip indexes
+         * @throws IOException if the file would be larger than MAX_FILE_SIZE
+         *                     or cannot be created
+         */
+        public StripWriter(String fileName, int width, int height, int[] paletteRGB) throws IOException {
+            if (width <= 0 || height <= 0) {
+                throw new IllegalArgumentException("Image dimensions must be positive");
+            }
+            this.width = width;
+            this.height = height;
+            this.bitsPerPixel = (paletteRGB.length <= 256) ? BmpWriter.bitsPerPixel(paletteRGB.length) : 24;
+            int[] filePalette = (bitsPerPixel == 24) ? new int[0] : paletteRGB;
+            this.stride = (((long) bitsPerPixel * width + 31) / 32) * 4;
+            this.dataOffset = FILE_HEADER_SIZE + INFO_HEADER_SIZE + 4 * filePalette.length;
+            long imageSize = stride * height;
+            if (dataOffset + imageSize > MAX_FILE_SIZE) {
+                throw new IOException("BMP file would be larger than 2 GB");
+            }
+
+            channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+            try {
+                writeHeaders(channel, block, width, height, bitsPerPixel, BI_RGB, (int) imageSize, filePalette);
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+        }
+
+        /**
+         * Writes the rows of strip as rows [firstRow, firstRow + strip
+         * height) of the image.
+         *
+         * @param firstRow the image row of the top of the strip
+         * @param strip    quantized rows, as wide as the image
+         * @throws IOException if the file cannot be written
+         */
+        public void writeStrip(int firstRow, QuantizedImage strip) throws IOException {
+            int rows = strip.getHeight();
+            if (strip.getWidth() != width || firstRow < 0 || firstRow + rows > height) {
+                throw new IllegalArgumentException("Strip lies outside the image");
+            }
+            int padding = (int) (stride - ((long) bitsPerPixel * width + 7) / 8);
+            int pixelsPerByte = Math.max(1, 8 / bitsPerPixel);
+
+            // the strip's rows are contiguous in the file, bottom row first
+            Output out = new Output(channel, block, dataOffset + (height - firstRow - rows) * stride);
+            for (int r = rows - 1; r >= 0; r--) {
+                if (bitsPerPixel == 24) {
+                    for (int x = 0; x < width; x++) {
+                        int rgb = strip.getRGB(x, r);
+                        out.put(rgb);
+                        out.put(rgb >> 8);
+                        out.put(rgb >> 16);
+                    }
+                } else {
+                    for (int x = 0; x < width; x += pixelsPerByte) {
+                        int packed = 0;
+                        for (int k = 0; k < pixelsPerByte; k++) {
+                            int index = (x + k < width) ? strip.getIndex(x + k, r) : 0;
+                            packed |= index << (8 - bitsPerPixel * (k + 1));
+                        }
+                        out.put(packed);
+                    }
+                }
+                for (int p = 0; p < padding; p++) {
+                    out.put(0);
+                }
+            }
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
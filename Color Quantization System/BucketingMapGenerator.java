@@ -1,7 +1,6 @@
 
 
 
-import java.util.HashMap;
 import java.util.Map;
 
 public class BucketingMapGenerator implements ColorMapGenerator_Inter {
@@ -22,6 +21,16 @@ public class BucketingMapGenerator implements ColorMapGenerator_Inter {
      * @return a Pixel array containing numColors elements
      */
     public Pixel[] generateColorPalette(Pixel[][] pixelArray, int numColors) {
+        return bucketCenters(numColors);
+    }
+
+    @Override
+    public Pixel[] generateColorPalette(ColorHistogram histogram, int numColors) {
+        return bucketCenters(numColors);
+    }
+
+    // the bucket centers only depend on numColors, so the image is never read
+    private Pixel[] bucketCenters(int numColors) {
 
         if (numColors <= 0) {
             throw new IllegalArgumentException("Number of colors must be positive");
@@ -63,32 +72,27 @@ public class BucketingMapGenerator implements ColorMapGenerator_Inter {
      *         color
      */
     public Map<Pixel, Pixel> generateColorMap(Pixel[][] pixelArray, Pixel[] initialColorPalette) {
-        Map<Pixel, Pixel> colorMap = new HashMap<>();
+        return generateColorMap(PackedRaster.fromPixelMatrix(pixelArray), initialColorPalette);
+    }
 
+    @Override
+    public PackedColorMap generatePackedColorMap(ColorHistogram histogram, Pixel[] initialColorPalette) {
         long totalColors = 1L << 24; // 2^24
         double bucketSize = (double)totalColors / initialColorPalette.length;
 
-        // Create a set of all unique colors in the image
-        for (Pixel[] row : pixelArray) {
-            for (Pixel pixel : row) {
-                // If we haven't mapped this color yet
-                if (!colorMap.containsKey(pixel)) {
-                    // Convert pixel to 24-bit integer value
-                    int pixelVal = (pixel.getRed() << 16) | (pixel.getGreen() << 8) | pixel.getBlue();
-
-                    // Determine which bucket this pixel belongs to
-                    int bucketIndex = (int) (pixelVal / bucketSize);
-
-                    // Handle edge case
-                    if (bucketIndex >= initialColorPalette.length) {
-                        bucketIndex = initialColorPalette.length - 1;
-                    }
-
-                    // Map this pixel to the corresponding color in the palette
-                    colorMap.put(pixel, initialColorPalette[bucketIndex]);
-                }
+        // Map every unique color in the image to the palette entry of its bucket
+        int[] colors = histogram.getColors();
+        int[] bucketIndices = new int[colors.length];
+        for (int i = 0; i < colors.length; i++) {
+            // Determine which bucket this pixel belongs to
+            int bucketIndex = (int) (colors[i] / bucketSize);
+
+            // Handle edge case
+            if (bucketIndex >= initialColorPalette.length) {
+                bucketIndex = initialColorPalette.length - 1;
             }
+            bucketIndices[i] = bucketIndex;
         }
-        return colorMap;
+        return new PackedColorMap(colors, bucketIndices, initialColorPalette);
     }
 }
@@ -0,0 +1,142 @@
+
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Puts a PaletteCache in front of another generator. When an image's
+ * histogram fingerprint matches an earlier image quantized with the same
+ * generator and number of colors, the earlier final palette is reused and
+ * the wrapped generator is never called. An image with exactly the same
+ * histogram gets the cached color map back unchanged; a near duplicate has
+ * its colors mapped to the nearest entry of the cached palette.
+ *
+ * On a hit the initial palette passed to generatePackedColorMap is ignored
+ * apart from its length.
+ */
+public class CachingMapGenerator implements ColorMapGenerator_Inter {
+    // numbers generators that were not given an identity, so that no two of
+    // them ever share entries
+    private static final AtomicLong INSTANCES = new AtomicLong();
+
+    private ColorMapGenerator_Inter generator;
+    private PaletteCache cache;
+    private DistanceMetric_Inter metric;
+    private String identity;
+
+    // the last histogram fingerprinted, since ColorQuantizer passes the same
+    // histogram to both generator methods
+    private volatile Fingerprint last;
+
+    private static final class Fingerprint {
+        final ColorHistogram histogram;
+        final long value;
+
+        Fingerprint(ColorHistogram histogram, long value) {
+            this.histogram = histogram;
+            this.value = value;
+        }
+    }
+
+    // entries are shared only with this generator object; near duplicates
+    // are remapped with SquaredEuclideanMetric
+    public CachingMapGenerator(ColorMapGenerator_Inter generator, PaletteCache cache) {
+
+        this(generator, cache, new SquaredEuclideanMetric(),
+                generator.getClass().getName() + "#" + INSTANCES.incrementAndGet());
+
+    }
+
+    // identity names the generator and its settings, such as the metric, so
+    // that separate generator objects configured alike can share entries
+    public CachingMapGenerator(ColorMapGenerator_Inter generator, PaletteCache cache, DistanceMetric_Inter metric,
+            String identity) {
+
+        this.generator = generator;
+        this.cache = cache;
+        this.metric = metric;
+        this.identity = identity;
+
+    }
+
+    /**
+     * Produces an initial palette. For bucketing implementations, the initial
+     * palette will be the centers of the evenly-divided buckets. For clustering
+     * implementations, the initial palette will be the initial centroids. When
+     * needed, a distance metric should be specified when the color map
+     * generator is constructed.
+     *
+     * @param pixelArray the 2D Pixel array that represents a bitmap image
+     * @param numColors  the number of desired colors in the palette
+     * @return a Pixel array containing numColors elements
+     */
+    public Pixel[] generateColorPalette(Pixel[][] pixelArray, int numColors) {
+        return generateColorPalette(ColorHistogram.of(PackedRaster.fromPixelMatrix(pixelArray)), numColors);
+    }
+
+    /**
+     * Computes the reduced color map. For bucketing implementations, this will
+     * map each color to the center of its bucket. For clustering
+     * implementations, this will map each color to its final centroid. When
+     * needed, a distance metric should be specified when the color map
+     * generator is constructed.
+     *
+     * @param pixelArray          the pixels array that represents a bitmap image
+     * @param initialColorPalette an initial color palette, such as those
+     *                            generated by generateColorPalette, represented
+     *                            as an array of Pixels
+     * @return A Map that maps each distinct color in pixelArray to a final
+     *         color
+     */
+    public Map<Pixel, Pixel> generateColorMap(Pixel[][] pixelArray, Pixel[] initialColorPalette) {
+        return generatePackedColorMap(ColorHistogram.of(PackedRaster.fromPixelMatrix(pixelArray)), initialColorPalette)
+                .toPixelMap();
+    }
+
+    // on a hit this is the cached final palette, so seeding is skipped too
+    @Override
+    public Pixel[] generateColorPalette(ColorHistogram histogram, int numColors) {
+        if (!histogram.isEmpty()) {
+            PaletteCache.Entry entry = cache.peek(key(histogram, numColors));
+            if (entry != null) {
+                return entry.colorMap.getPalette().clone();
+            }
+        }
+        return generator.generateColorPalette(histogram, numColors);
+    }
+
+    @Override
+    public PackedColorMap generatePackedColorMap(ColorHistogram histogram, Pixel[] initialColorPalette) {
+        if (histogram.isEmpty()) {
+            return generator.generatePackedColorMap(histogram, initialColorPalette);
+        }
+        PaletteCache.Key key = key(histogram, initialColorPalette.length);
+        PaletteCache.Entry entry = cache.get(key);
+        long exactHash = PaletteCache.exactHash(histogram);
+        if (entry != null) {
+            // the hash can collide, so the colors are compared as well
+            if (entry.exactHash == exactHash && Arrays.equals(entry.colorMap.getColors(), histogram.getColors())) {
+                return entry.colorMap;
+            }
+            return new PaletteIndex(metric, entry.colorMap.getPalette()).mapColors(histogram);
+        }
+
+        PackedColorMap colorMap = generator.generatePackedColorMap(histogram, initialColorPalette);
+        cache.put(key, new PaletteCache.Entry(colorMap, exactHash));
+        return colorMap;
+    }
+
+    private PaletteCache.Key key(ColorHistogram histogram, int numColors) {
+        Fingerprint fingerprint = last;
+        if (fingerprint == null || fingerprint.histogram != histogram) {
+            fingerprint = new Fingerprint(histogram, PaletteCache.fingerprint(histogram));
+            last = fingerprint;
+        }
+        return new PaletteCache.Key(fingerprint.value, numColors, identity);
+    }
+
+    public PaletteCache getCache() {
+        return cache;
+    }
+}
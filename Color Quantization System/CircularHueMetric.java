@@ -1,6 +1,6 @@
 
 
-public class CircularHueMetric implements DistanceMetric_Inter {
+public class CircularHueMetric implements ProjectedMetric_Inter {
 
       /**
      * Computes the distance between the RGB values of two pixels. Different
@@ -22,5 +22,64 @@ public class CircularHueMetric implements DistanceMetric_Inter {
 
     }
 
+    @Override
+    public double colorDistance(int rgb1, int rgb2){
+        double distance=Math.abs(HueTable.hueOf(rgb1)-HueTable.hueOf(rgb2));
+        return Math.min(distance, 360-distance);
+    }
+
+    // the hue of rgb is computed once, and the palette's hues come
+    // precomputed with the buffer
+    @Override
+    public void colorDistances(int rgb, PaletteBuffer palette, double[] distances){
+        double hue=HueTable.hueOf(rgb);
+        double[] hues=palette.hues();
+        for (int n = 0, size = palette.size(); n < size; n++) {
+            double distance=Math.abs(hue-hues[n]);
+            distances[n]=Math.min(distance, 360-distance);
+        }
+    }
+
+    // the same loop for each color, writing straight into its row of the
+    // block
+    @Override
+    public void colorDistances(int[] colors, int from, int to, PaletteBuffer palette, double[] distances){
+        double[] hues=palette.hues();
+        int size=palette.size();
+        for (int p = from; p < to; p++) {
+            double hue=HueTable.hueOf(colors[p]);
+            int row=(p-from)*size;
+            for (int n = 0; n < size; n++) {
+                double distance=Math.abs(hue-hues[n]);
+                distances[row+n]=Math.min(distance, 360-distance);
+            }
+        }
+    }
+
+    // the only feature is the hue, looked up in the shared hue table once it
+    // exists
+    @Override
+    public int featureDimension() {
+        return 1;
+    }
+
+    @Override
+    public void project(int[] colors, int from, int to, float[] features, int offset) {
+        HueTable.project(colors, from, to, features, offset);
+    }
+
+    @Override
+    public void project(int rgb, float[] features, int offset) {
+        features[offset] = HueTable.hueOf(rgb);
+    }
+
+    @Override
+    public void featureDistances(float[] query, int queryOffset, float[] targets, int from, int to, double[] distances){
+        float hue=query[queryOffset];
+        for (int n = from; n < to; n++) {
+            float distance=Math.abs(hue-targets[n]);
+            distances[n]=Math.min(distance, 360-distance);
+        }
+    }
 
 }
@@ -1,16 +1,31 @@
 
 
-import java.util.HashMap;
 import java.util.Map;
-import java.util.Arrays;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
 
 public class ClusteringMapGenerator implements ColorMapGenerator_Inter {
     private DistanceMetric_Inter distanceMetric;
 
+    // whether k-means weights each color by how many pixels have it
+    private boolean weighted;
+
+    // worker threads for the clustering loop; 1 runs everything on the caller
+    private int parallelism;
+
+    // one pool per parallelism, shared by every generator so that creating
+    // many generators does not leave threads behind. Pool workers are daemon
+    // threads and time out when idle.
+    private static final Map<Integer, ForkJoinPool> POOLS = new ConcurrentHashMap<>();
+
+    // when to stop the k-means loop, and how the last run stopped
+    private ConvergencePolicy convergencePolicy;
+    private volatile ConvergencePolicy.StopReason lastStopReason;
+    private volatile int lastIterationCount;
+
+    // where the initial centroids come from; null uses farthest-first
+    private ColorMapGenerator_Inter seedGenerator;
+
     // constructor that accepts an object that is a subtype of DistanceMetric_Inter
     // That is, when instantiating ClusteringMapGenerator, one must specify an
     // object that can be used (via the colorDistance method)
@@ -18,8 +33,77 @@ public class ClusteringMapGenerator implements ColorMapGenerator_Inter {
     // of Pixel.
     public ClusteringMapGenerator(DistanceMetric_Inter metric) {
 
+        this(metric, false);
+
+    }
+
+    // when weighted is true, each distinct color pulls its centroid as hard as
+    // the number of pixels that have it, instead of every color counting once
+    public ClusteringMapGenerator(DistanceMetric_Inter metric, boolean weighted) {
+
+        this(metric, weighted, 1);
+
+    }
+
+    // parallelism is the number of worker threads used to assign colors to
+    // centroids; the color map is the same for any value
+    public ClusteringMapGenerator(DistanceMetric_Inter metric, boolean weighted, int parallelism) {
+
+        this(metric, weighted, parallelism, ConvergencePolicy.defaultPolicy());
+
+    }
+
+    // policy decides when the k-means loop stops; see getLastStopReason for
+    // which of its limits ended the most recent run
+    public ClusteringMapGenerator(DistanceMetric_Inter metric, boolean weighted, int parallelism,
+            ConvergencePolicy policy) {
+
+        this(metric, weighted, parallelism, policy, null);
+
+    }
+
+    // the initial centroids are the palette of seedGenerator, e.g. a
+    // MedianCutMapGenerator, so k-means only has to refine them
+    public ClusteringMapGenerator(DistanceMetric_Inter metric, ColorMapGenerator_Inter seedGenerator) {
+
+        this(metric, false, 1, ConvergencePolicy.defaultPolicy(), seedGenerator);
+
+    }
+
+    public ClusteringMapGenerator(DistanceMetric_Inter metric, boolean weighted, int parallelism,
+            ConvergencePolicy policy, ColorMapGenerator_Inter seedGenerator) {
+
+        if (parallelism <= 0) {
+            throw new IllegalArgumentException("Parallelism must be positive");
+        }
+        if (policy == null) {
+            throw new IllegalArgumentException("A convergence policy is required");
+        }
         this.distanceMetric = metric;
+        this.weighted = weighted;
+        this.parallelism = parallelism;
+        this.convergencePolicy = policy;
+        this.seedGenerator = seedGenerator;
+
+    }
+
+    // why the most recent generateColorMap call stopped iterating, or null
+    // before the first call
+    public ConvergencePolicy.StopReason getLastStopReason() {
+        return lastStopReason;
+    }
+
+    // iterations the most recent generateColorMap call ran
+    public int getLastIterationCount() {
+        return lastIterationCount;
+    }
 
+    // the shared pool for this parallelism, created on first use
+    private ForkJoinPool pool() {
+        if (parallelism == 1) {
+            return null;
+        }
+        return POOLS.computeIfAbsent(parallelism, ForkJoinPool::new);
     }
 
     /**
@@ -37,65 +121,18 @@ public class ClusteringMapGenerator implements ColorMapGenerator_Inter {
         if (numColors <= 0) {
             throw new IllegalArgumentException("Number of colors must be positive");
         }
+        return generateColorPalette(ColorHistogram.of(PackedRaster.fromPixelMatrix(pixelArray)), numColors);
+    }
 
-        Set<Pixel> uniquePixels = new HashSet<>();
-        for (Pixel[] row : pixelArray) {
-            for (Pixel pixel : row) {
-                uniquePixels.add(pixel);
-            }
-        }
-        
-        List<Pixel> uniquePixelList = new ArrayList<>(uniquePixels);
-        Pixel[] palette = new Pixel[numColors];
-        if (uniquePixelList.isEmpty()) {
-            return palette;
+    @Override
+    public Pixel[] generateColorPalette(ColorHistogram histogram, int numColors) {
+        if (numColors <= 0) {
+            throw new IllegalArgumentException("Number of colors must be positive");
         }
-
-        palette[0]=pixelArray[0][0];
-        // Select remaining centroids using farthest-first traversal
-        for(int k = 1; k < numColors && k < uniquePixelList.size(); k++){
-            Pixel farthestPixel = null;
-            double maxMinDistance = -1;
-
-            // For each pixel, find its distance to the closest centroid
-            for(Pixel pixel: uniquePixelList){
-                
-                double minDistance = Double.MAX_VALUE;
-
-                for(int i=0; i<k; i++){
-                    double distance=distanceMetric.colorDistance(pixel, palette[i]);
-                    if(distance<minDistance){
-                        minDistance=distance;
-                    }
-
-                }
-
-                // If this pixel is farther from its closest centroid than any we've seen so far,
-                // or is the same distance but has a higher RGB value, select it
-                boolean isNewFarthest = minDistance > maxMinDistance;
-                boolean isthesamedistancebuthasahigherRGBvalue= ((maxMinDistance==minDistance) && farthestPixel != null && pixelToInt(pixel)>pixelToInt(farthestPixel));
-
-
-                if (isNewFarthest || isthesamedistancebuthasahigherRGBvalue ) {
-                    maxMinDistance = minDistance;
-                    farthestPixel = pixel;
-
-                }
-
-
-            }
-            // Add the farthest pixel as the next centroid
-            palette[k]=farthestPixel;
-
+        if (seedGenerator != null) {
+            return seedGenerator.generateColorPalette(histogram, numColors);
         }
-
-        return palette;
-
-
-    }
-
-    private int pixelToInt(Pixel pixel) {
-        return ((pixel.getRed() << 16) & 0xff0000) | ((pixel.getGreen() << 8) & 0xff0000) | (pixel.getBlue() & 0xff);
+        return new FarthestFirstSeeder(distanceMetric, histogram, pool()).seed(histogram.getFirstColor(), numColors);
     }
 
     /**
@@ -119,109 +156,17 @@ public class ClusteringMapGenerator implements ColorMapGenerator_Inter {
     // final color palette and then return a map of each distinct color in
     // pixelArray to its value in the final color palette.
     public Map<Pixel, Pixel> generateColorMap(Pixel[][] pixelArray, Pixel[] initialColorPalette) {
-        // Get all unique pixels
-        Set<Pixel> uniquePixels = new HashSet<>();
-        for (Pixel[] row : pixelArray) {
-            for (Pixel pixel : row) {
-                uniquePixels.add(pixel);
-            }
-        }
-        
-        List<Pixel> uniquePixelList = new ArrayList<>(uniquePixels);
-        int numColors = initialColorPalette.length;
-        
-        // Start with the initial palette
-        Pixel[] currentPalette = new Pixel[numColors];
-        System.arraycopy(initialColorPalette, 0, currentPalette, 0, numColors);
-        
-        
-        boolean centroidsChanged = true;
-        int maxIterations = 10000;  // Prevent infinite loops
-        int iteration = 0;
-        
-        // Maps for assignment of pixels to clusters
-        Map<Pixel, List<Pixel>> clusters = new HashMap<>();
-        
-        // K-means iteration
-        while (centroidsChanged && iteration < maxIterations) {
-            // Reset clusters
-            clusters.clear();
-            for (int i = 0; i < numColors; i++) {
-                clusters.put(currentPalette[i], new ArrayList<>());
-            }
-            
-            // Assign each pixel to the closest centroid (cluster)
-            for (Pixel pixel : uniquePixelList) {
-                double minDistance = Double.MAX_VALUE;
-                Pixel closestCentroid = null;
-                
-                for (Pixel centroid : currentPalette) {
-                    if (centroid == null) continue;
-                    
-                    double distance = distanceMetric.colorDistance(pixel, centroid);
-                    if (distance < minDistance) {
-                        minDistance = distance;
-                        closestCentroid = centroid;
-                    }
-                }
-                
-                if (closestCentroid != null) {
-                    clusters.get(closestCentroid).add(pixel);
-                }
-            }
-            
-            // Calculate new centroids by averaging the pixels in each cluster
-            centroidsChanged = false;
-            for (int i = 0; i < numColors; i++) {
-                List<Pixel> cluster = clusters.get(currentPalette[i]);
-                
-                if (!cluster.isEmpty()) {
-                    // Calculate average RGB values
-                    long sumR = 0, sumG = 0, sumB = 0;
-                    for (Pixel pixel : cluster) {
-                        sumR += pixel.getRed();
-                        sumG += pixel.getGreen();
-                        sumB += pixel.getBlue();
-                    }
-                    
-                    int avgR = (int)(sumR / cluster.size());
-                    int avgG = (int)(sumG / cluster.size());
-                    int avgB = (int)(sumB / cluster.size());
-                    
-                    Pixel newCentroid = new Pixel(avgR, avgG, avgB);
-                    
-                    // Check if centroid changed
-                    if (!newCentroid.equals(currentPalette[i])) {
-                        currentPalette[i] = newCentroid;
-                        centroidsChanged = true;
-                    }
-                }
-            }
-            
-            iteration++;
-        }
-        
-        // Create a map from each original pixel to its closest centroid in the final palette
-        Map<Pixel, Pixel> colorMap = new HashMap<>();
-        for (Pixel pixel : uniquePixelList) {
-            Pixel closestCentroid = null;
-            double minDistance = Double.MAX_VALUE;
-            
-            for (Pixel centroid : currentPalette) {
-                if (centroid == null) continue;
-                
-                double distance = distanceMetric.colorDistance(pixel, centroid);
-                if (distance < minDistance) {
-                    minDistance = distance;
-                    closestCentroid = centroid;
-                }
-            }
-            
-            colorMap.put(pixel, closestCentroid);
-        }
-        
-        return colorMap;
+        ColorHistogram histogram = ColorHistogram.of(PackedRaster.fromPixelMatrix(pixelArray));
+        return generatePackedColorMap(histogram, initialColorPalette).toPixelMap();
+    }
 
+    @Override
+    public PackedColorMap generatePackedColorMap(ColorHistogram histogram, Pixel[] initialColorPalette) {
+        KMeansClusterer clusterer = new KMeansClusterer(distanceMetric, histogram, weighted, initialColorPalette, pool());
+        PackedColorMap colorMap = clusterer.run(convergencePolicy);
+        lastStopReason = clusterer.getStopReason();
+        lastIterationCount = clusterer.getIterations();
+        return colorMap;
     }
 
 }
@@ -0,0 +1,229 @@
+
+
+import java.util.Arrays;
+
+/**
+ * The distinct colors of an image together with how many pixels have each
+ * color. Colors are packed 0xRRGGBB values kept in ascending order in a
+ * primitive array, with the matching occurrence counts in a parallel array.
+ *
+ * A histogram is built with a single pass over a raster and can then be
+ * shared by every stage of the quantization pipeline.
+ */
+public final class ColorHistogram {
+    // rasters at least this large are counted with a 2^24 entry table
+    // instead of being sorted
+    static final int DENSE_COUNT_THRESHOLD = 1 << 22;
+
+    private final int[] colors;
+    private final int[] counts;
+    private final long totalCount;
+    private final int firstColor;
+
+    /**
+     * Creates a histogram from parallel arrays of colors and counts. The
+     * arrays are used as given, not copied.
+     *
+     * @param colors     distinct packed colors in ascending order
+     * @param counts     the number of pixels with each color, all positive
+     * @param firstColor the color of the first pixel of the image, or -1 when
+     *                   the image is empty
+     */
+    public ColorHistogram(int[] colors, int[] counts, int firstColor) {
+        if (colors.length != counts.length) {
+            throw new IllegalArgumentException("Every color needs exactly one count");
+        }
+        long total = 0;
+        for (int i = 0; i < colors.length; i++) {
+            if (counts[i] <= 0) {
+                throw new IllegalArgumentException("Color counts must be positive");
+            }
+            if (i > 0 && colors[i] <= colors[i - 1]) {
+                throw new IllegalArgumentException("Colors must be distinct and in ascending order");
+            }
+            total += counts[i];
+        }
+        this.colors = colors;
+        this.counts = counts;
+        this.totalCount = total;
+        this.firstColor = firstColor;
+    }
+
+    /**
+     * Builds the histogram of a raster in one pass over its pixels.
+     *
+     * @param raster the packed raster that represents a bitmap image
+     * @return the color histogram of raster
+     */
+    public static ColorHistogram of(PackedRaster raster) {
+        int[] data = raster.getData();
+        int firstColor = (data.length > 0) ? data[0] : -1;
+
+        if (data.length >= DENSE_COUNT_THRESHOLD) {
+            // large images: count into a table indexed by color, then collect
+            // the non-empty slots, which come out already sorted
+            int[] table = new int[1 << 24];
+            for (int rgb : data) {
+                table[rgb]++;
+            }
+            return fromDenseCounts(table, firstColor);
+        }
+
+        // small images: sort a copy and count runs of equal colors
+        int[] sorted = data.clone();
+        Arrays.sort(sorted);
+        int[] counts = new int[sorted.length];
+        int distinct = 0;
+        for (int i = 0; i < sorted.length; i++) {
+            if (i == 0 || sorted[i] != sorted[i - 1]) {
+                sorted[distinct++] = sorted[i];
+            }
+            counts[distinct - 1]++;
+        }
+        return new ColorHistogram(Arrays.copyOf(sorted, distinct), Arrays.copyOf(counts, distinct), firstColor);
+    }
+
+    /**
+     * Builds a histogram from a table of 2^24 counts indexed by color, such
+     * as one accumulated a strip at a time.
+     *
+     * @param table      the pixel count of every color
+     * @param firstColor the color of the first pixel of the image, or -1 when
+     *                   the image is empty
+     * @return the color histogram the table describes
+     */
+    static ColorHistogram fromDenseCounts(int[] table, int firstColor) {
+        int distinct = 0;
+        for (int count : table) {
+            if (count != 0) {
+                distinct++;
+            }
+        }
+        // the non-empty slots come out already sorted
+        int[] colors = new int[distinct];
+        int[] counts = new int[distinct];
+        int next = 0;
+        for (int rgb = 0; next < distinct; rgb++) {
+            if (table[rgb] != 0) {
+                colors[next] = rgb;
+                counts[next] = table[rgb];
+                next++;
+            }
+        }
+        return new ColorHistogram(colors, counts, firstColor);
+    }
+
+    // number of distinct colors
+    public int size() {
+        return colors.length;
+    }
+
+    public boolean isEmpty() {
+        return colors.length == 0;
+    }
+
+    /**
+     * Returns the distinct packed colors in ascending order. This is the
+     * backing array and must not be modified.
+     *
+     * @return the distinct colors of the image
+     */
+    public int[] getColors() {
+        return colors;
+    }
+
+    /**
+     * Returns the pixel count of each color, parallel to getColors. This is
+     * the backing array and must not be modified.
+     *
+     * @return the occurrence count of each distinct color
+     */
+    public int[] getCounts() {
+        return counts;
+    }
+
+    // total number of pixels counted
+    public long getTotalCount() {
+        return totalCount;
+    }
+
+    // color of the top-left pixel of the image, or -1 for an empty image
+    public int getFirstColor() {
+        return firstColor;
+    }
+
+    /**
+     * Returns the index of rgb in getColors.
+     *
+     * @param rgb a packed color
+     * @return the index of rgb, or a negative value if it is not present
+     */
+    public int indexOf(int rgb) {
+        return Arrays.binarySearch(colors, rgb);
+    }
+
+    /**
+     * Counts the pixels in coarse bins that keep only the top bits of each
+     * channel. The bin of a color is its red, green and blue bits packed in
+     * that order, as in a packed color.
+     *
+     * @param bitsPerChannel bits kept of each channel, from 1 to 8
+     * @return the pixel count of each of the 2^(3 * bitsPerChannel) bins
+     */
+    long[] coarseCounts(int bitsPerChannel) {
+        if (bitsPerChannel < 1 || bitsPerChannel > 8) {
+            throw new IllegalArgumentException("Bins must keep between 1 and 8 bits per channel");
+        }
+        int shift = 8 - bitsPerChannel;
+        int mask = (1 << bitsPerChannel) - 1;
+        long[] bins = new long[1 << (3 * bitsPerChannel)];
+        for (int i = 0; i < colors.length; i++) {
+            int rgb = colors[i];
+            int bin = (((rgb >> (16 + shift)) & mask) << (2 * bitsPerChannel))
+                    | (((rgb >> (8 + shift)) & mask) << bitsPerChannel) | ((rgb >> shift) & mask);
+            bins[bin] += counts[i];
+        }
+        return bins;
+    }
+
+    /**
+     * Measures how well a color map fits this histogram: the sum over every
+     * pixel of the distance from its color to the color it is mapped to.
+     * Lower is better; with SquaredEuclideanMetric this is the k-means
+     * objective.
+     *
+     * @param colorMap a color map covering every color of this histogram
+     * @param metric   the distance metric between colors
+     * @return the total distortion over all pixels
+     */
+    public double distortion(PackedColorMap colorMap, DistanceMetric_Inter metric) {
+        double total = 0;
+        for (int i = 0; i < colors.length; i++) {
+            total += counts[i] * metric.colorDistance(colors[i], colorMap.map(colors[i]));
+        }
+        return total;
+    }
+
+    /**
+     * Lays the distinct colors out as a one pixel high Pixel matrix, with the
+     * first color of the image at [0][0]. This lets generators that only
+     * understand Pixel arrays work from a histogram; counts are lost.
+     *
+     * @return a Pixel matrix holding every distinct color once
+     */
+    public Pixel[][] toPixelMatrix() {
+        Pixel[][] pixelMatrix = new Pixel[colors.length][1];
+        if (colors.length == 0) {
+            return pixelMatrix;
+        }
+        int firstIndex = indexOf(firstColor);
+        pixelMatrix[0][0] = Pixel.fromRGB(firstColor);
+        int x = 1;
+        for (int i = 0; i < colors.length; i++) {
+            if (i != firstIndex) {
+                pixelMatrix[x++][0] = Pixel.fromRGB(colors[i]);
+            }
+        }
+        return pixelMatrix;
+    }
+}
@@ -37,4 +37,74 @@ interface ColorMapGenerator_Inter {
      * color
      */
    public Map<Pixel, Pixel> generateColorMap(Pixel[][] pixelArray, Pixel[] initialColorPalette);
+
+    /**
+     * Produces an initial palette from a packed raster. The default
+     * implementation builds the histogram of the raster and passes it to the
+     * histogram overload.
+     *
+     * @param raster the packed raster that represents a bitmap image
+     * @param numColors the number of desired colors in the palette
+     * @return a Pixel array containing numColors elements
+     */
+    public default Pixel[] generateColorPalette(PackedRaster raster, int numColors) {
+        return generateColorPalette(ColorHistogram.of(raster), numColors);
+    }
+
+    /**
+     * Computes the reduced color map for a packed raster. The default
+     * implementation converts the result of generatePackedColorMap.
+     *
+     * @param raster the packed raster that represents a bitmap image
+     * @param initialColorPalette an initial color palette, such as those
+     * generated by generateColorPalette, represented as an array of Pixels
+     * @return A Map that maps each distinct color in raster to a final color
+     */
+    public default Map<Pixel, Pixel> generateColorMap(PackedRaster raster, Pixel[] initialColorPalette) {
+        return generatePackedColorMap(raster, initialColorPalette).toPixelMap();
+    }
+
+    /**
+     * Computes the reduced color map for a packed raster as a primitive
+     * lookup table. The default implementation builds the histogram of the
+     * raster and passes it to the histogram overload.
+     *
+     * @param raster the packed raster that represents a bitmap image
+     * @param initialColorPalette an initial color palette, such as those
+     * generated by generateColorPalette, represented as an array of Pixels
+     * @return A PackedColorMap that maps each distinct color in raster to a
+     * final color
+     */
+    public default PackedColorMap generatePackedColorMap(PackedRaster raster, Pixel[] initialColorPalette) {
+        return generatePackedColorMap(ColorHistogram.of(raster), initialColorPalette);
+    }
+
+    /**
+     * Produces an initial palette from the color histogram of an image, so the
+     * image does not have to be scanned again. The default implementation
+     * adapts the histogram to a Pixel matrix; implementations should override
+     * it to work on the histogram directly.
+     *
+     * @param histogram the distinct colors of an image and their counts
+     * @param numColors the number of desired colors in the palette
+     * @return a Pixel array containing numColors elements
+     */
+    public default Pixel[] generateColorPalette(ColorHistogram histogram, int numColors) {
+        return generateColorPalette(histogram.toPixelMatrix(), numColors);
+    }
+
+    /**
+     * Computes the reduced color map from the color histogram of an image.
+     * The default implementation adapts the histogram to a Pixel matrix;
+     * implementations should override it to work on the histogram directly.
+     *
+     * @param histogram the distinct colors of an image and their counts
+     * @param initialColorPalette an initial color palette, such as those
+     * generated by generateColorPalette, represented as an array of Pixels
+     * @return A PackedColorMap that maps each color in histogram to a final
+     * color
+     */
+    public default PackedColorMap generatePackedColorMap(ColorHistogram histogram, Pixel[] initialColorPalette) {
+        return PackedColorMap.fromPixelMap(generateColorMap(histogram.toPixelMatrix(), initialColorPalette));
+    }
 }
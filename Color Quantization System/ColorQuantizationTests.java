@@ -2,6 +2,7 @@
 import java.util.Map;
 import java.util.Arrays;
 import java.util.HashSet;
+import java.util.Random;
 import java.util.Set;
 import java.awt.image.BufferedImage;
 import java.io.File;
@@ -477,8 +478,1215 @@ public class ColorQuantizationTests {
         assert uniqueColors.size() <= 3;
     }
 
+    // ===================== PACKED RASTER TESTS =====================
+
+    void testPackedRasterRoundTrip() {
+        PackedRaster raster = PackedRaster.fromPixelMatrix(testImage);
+        assert raster.getWidth() == testImage.length;
+        assert raster.getHeight() == testImage[0].length;
+
+        // row-major layout: (x, y) lives at y * width + x
+        assert raster.getRGB(1, 0) == whitePixel.getRGB();
+        assert raster.getData()[1] == whitePixel.getRGB();
+        assert raster.getRGB(0, 1) == greenPixel.getRGB();
+
+        Pixel[][] roundTrip = raster.toPixelMatrix();
+        for (int x = 0; x < testImage.length; x++) {
+            for (int y = 0; y < testImage[x].length; y++) {
+                assert roundTrip[x][y].equals(testImage[x][y]);
+            }
+        }
+
+        // the raster constructor must produce the same result as the Pixel[][] one
+        ColorQuantizer fromMatrix = new ColorQuantizer(testImage, new BucketingMapGenerator());
+        ColorQuantizer fromRaster = new ColorQuantizer(raster, new BucketingMapGenerator());
+        assert Arrays.equals(fromMatrix.quantizeToRaster(4).getData(), fromRaster.quantizeToRaster(4).getData());
+    }
+
+    // ===================== PACKED COLOR MAP TESTS =====================
+
+    void testPackedColorMap() {
+        Pixel[] palette = {blackPixel, whitePixel};
+
+        // colors that collided under the old Pixel hash code
+        int[] colors = {new Pixel(1, 0, 0).getRGB(), new Pixel(0, 10, 0).getRGB(), whitePixel.getRGB()};
+        int[] indices = {0, 0, 1};
+        PackedColorMap hashed = new PackedColorMap(colors, indices, palette);
+        assert hashed.size() == 3;
+        assert hashed.indexOf(colors[1]) == 0;
+        assert hashed.map(colors[2]) == whitePixel.getRGB();
+        assert !hashed.containsColor(redPixel.getRGB());
+        assert hashed.toPixelMap().get(new Pixel(0, 10, 0)) == blackPixel;
+
+        // enough colors to switch to the dense 2^24 entry table
+        int count = PackedColorMap.DENSE_THRESHOLD + 1;
+        int[] manyColors = new int[count];
+        int[] manyIndices = new int[count];
+        for (int i = 0; i < count; i++) {
+            manyColors[i] = i * 31;
+            manyIndices[i] = i % 2;
+        }
+        PackedColorMap dense = new PackedColorMap(manyColors, manyIndices, palette);
+        assert dense.indexOf(31) == 1;
+        assert dense.map(62) == blackPixel.getRGB();
+        assert dense.indexOf(1) == -1;
+    }
+
+    // ===================== COLOR HISTOGRAM TESTS =====================
+
+    void testColorHistogram() {
+        ColorHistogram histogram = ColorHistogram.of(PackedRaster.fromPixelMatrix(testImage));
+        assert histogram.size() == 5;
+        assert histogram.getTotalCount() == 9;
+        assert histogram.getFirstColor() == redPixel.getRGB();
+
+        // colors are sorted, so black comes first and white last
+        assert histogram.getColors()[0] == blackPixel.getRGB();
+        assert histogram.getColors()[4] == whitePixel.getRGB();
+        assert histogram.getCounts()[0] == 1;
+        assert histogram.getCounts()[histogram.indexOf(redPixel.getRGB())] == 2;
+
+        // the adapter keeps the first pixel of the image in front
+        Pixel[][] adapted = histogram.toPixelMatrix();
+        assert adapted.length == 5;
+        assert adapted[0][0].equals(redPixel);
+
+        // large rasters are counted with a table and must agree with sorting
+        int size = 1000 * (ColorHistogram.DENSE_COUNT_THRESHOLD / 1000 + 1);
+        int[] data = new int[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = (int) ((long) i * 7919 % 1000);
+        }
+        ColorHistogram dense = ColorHistogram.of(new PackedRaster(size, 1, data));
+        ColorHistogram sorted = ColorHistogram.of(new PackedRaster(1000, 1, Arrays.copyOf(data, 1000)));
+        assert Arrays.equals(dense.getColors(), sorted.getColors());
+        assert dense.getTotalCount() == size;
+        assert dense.getCounts()[0] == size / 1000;
+
+        // wrapped ARGB data is counted by color alone, on either path
+        int[] argb = data.clone();
+        for (int i = 0; i < size; i++) {
+            argb[i] |= 0xFF000000;
+        }
+        ColorHistogram denseARGB = ColorHistogram.of(new PackedRaster(size, 1, argb));
+        assert Arrays.equals(denseARGB.getColors(), dense.getColors());
+        int[] smallARGB = new int[1000];
+        for (int i = 0; i < smallARGB.length; i++) {
+            smallARGB[i] = data[i] | 0x80000000;
+        }
+        ColorHistogram sortedARGB = ColorHistogram.of(new PackedRaster(1000, 1, smallARGB));
+        assert Arrays.equals(sortedARGB.getColors(), sorted.getColors());
+    }
+
+    void testWeightedClustering() {
+        // nine black pixels and one white one
+        Pixel[][] image = new Pixel[10][1];
+        for (int x = 0; x < 9; x++) {
+            image[x][0] = blackPixel;
+        }
+        image[9][0] = whitePixel;
+        Pixel[] palette = {blackPixel};
+
+        // every distinct color counts once: the centroid lands halfway
+        Map<Pixel, Pixel> unweighted = new ClusteringMapGenerator(new SquaredEuclideanMetric())
+                .generateColorMap(image, palette);
+        assert unweighted.get(whitePixel).equals(new Pixel(127, 127, 127));
+
+        // weighted by pixel count: the centroid follows the black mass
+        Map<Pixel, Pixel> weighted = new ClusteringMapGenerator(new SquaredEuclideanMetric(), true)
+                .generateColorMap(image, palette);
+        assert weighted.get(whitePixel).equals(new Pixel(25, 25, 25));
+
+        // packed distances agree with the Pixel versions
+        DistanceMetric_Inter[] metrics = {new SquaredEuclideanMetric(), new CircularHueMetric()};
+        Pixel orange = new Pixel(255, 128, 0);
+        for (DistanceMetric_Inter metric : metrics) {
+            assert metric.colorDistance(orange.getRGB(), bluePixel.getRGB()) == metric.colorDistance(orange, bluePixel);
+        }
+    }
+
+    void testParallelClusteringMatchesSerial() {
+        // enough distinct colors to be split into several parallel chunks
+        Random random = new Random(1501);
+        int[] data = new int[4 * KMeansClusterer.CHUNK_SIZE];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = random.nextInt(1 << 24);
+        }
+        ColorHistogram histogram = ColorHistogram.of(new PackedRaster(data.length, 1, data));
+
+        ClusteringMapGenerator serial = new ClusteringMapGenerator(new SquaredEuclideanMetric(), true, 1);
+        ClusteringMapGenerator parallel = new ClusteringMapGenerator(new SquaredEuclideanMetric(), true, 4);
+        Pixel[] palette = serial.generateColorPalette(histogram, 8);
+
+        PackedColorMap serialMap = serial.generatePackedColorMap(histogram, palette);
+        PackedColorMap parallelMap = parallel.generatePackedColorMap(histogram, palette);
+        assert Arrays.equals(serialMap.getPaletteRGB(), parallelMap.getPaletteRGB());
+        for (int rgb : histogram.getColors()) {
+            assert serialMap.indexOf(rgb) == parallelMap.indexOf(rgb);
+        }
+    }
+
+    // squared Euclidean distance that counts how often it is computed
+    private static class CountingMetric implements DistanceMetric_Inter {
+        private final SquaredEuclideanMetric metric = new SquaredEuclideanMetric();
+        private final boolean allowBounds;
+        long calls;
+
+        CountingMetric(boolean allowBounds) {
+            this.allowBounds = allowBounds;
+        }
+
+        public double colorDistance(Pixel p1, Pixel p2) {
+            calls++;
+            return metric.colorDistance(p1, p2);
+        }
+
+        public double colorDistance(int rgb1, int rgb2) {
+            calls++;
+            return metric.colorDistance(rgb1, rgb2);
+        }
+
+        public boolean isSquaredEuclidean() {
+            return allowBounds;
+        }
+    }
+
+    void testBoundedClusteringMatchesLloyd() {
+        ColorHistogram histogram = blobHistogram(6, 20000, 5, 50, 40);
+
+        CountingMetric plain = new CountingMetric(false);
+        CountingMetric bounded = new CountingMetric(true);
+        Pixel[] palette = new ClusteringMapGenerator(new SquaredEuclideanMetric()).generateColorPalette(histogram, 32);
+        PackedColorMap plainMap = new ClusteringMapGenerator(plain).generatePackedColorMap(histogram, palette);
+        PackedColorMap boundedMap = new ClusteringMapGenerator(bounded).generatePackedColorMap(histogram, palette);
+
+        assert Arrays.equals(plainMap.getPaletteRGB(), boundedMap.getPaletteRGB());
+        for (int rgb : histogram.getColors()) {
+            assert plainMap.indexOf(rgb) == boundedMap.indexOf(rgb);
+        }
+        assert bounded.calls * 2 < plain.calls;
+    }
+
+    void testPaletteIndexMatchesLinearScan() {
+        Random random = new Random(7);
+        Pixel[] palette = new Pixel[64];
+        for (int i = 0; i < palette.length; i++) {
+            // coarse channels produce plenty of exact ties and duplicates
+            palette[i] = new Pixel(random.nextInt(4) * 85, random.nextInt(4) * 85, random.nextInt(4) * 85);
+        }
+        palette[10] = null;
+
+        DistanceMetric_Inter[] metrics = {new SquaredEuclideanMetric(), new CircularHueMetric()};
+        for (DistanceMetric_Inter metric : metrics) {
+            PaletteIndex index = new PaletteIndex(metric, palette);
+            for (int q = 0; q < 5000; q++) {
+                int rgb = random.nextInt(1 << 24);
+                int expected = -1;
+                double minDistance = Double.MAX_VALUE;
+                for (int i = 0; i < palette.length; i++) {
+                    if (palette[i] == null) continue;
+                    double distance = metric.colorDistance(Pixel.fromRGB(rgb), palette[i]);
+                    if (distance < minDistance) {
+                        minDistance = distance;
+                        expected = i;
+                    }
+                }
+                assert index.nearest(rgb) == expected;
+            }
+        }
+    }
+
+    void testIncrementalSeedingMatchesNaive() {
+        Random random = new Random(8);
+        int[] data = new int[3 * KMeansClusterer.CHUNK_SIZE];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (random.nextInt(32) * 8 << 16) | (random.nextInt(32) * 8 << 8) | random.nextInt(32) * 8;
+        }
+        ColorHistogram histogram = ColorHistogram.of(new PackedRaster(data.length, 1, data));
+        SquaredEuclideanMetric metric = new SquaredEuclideanMetric();
+        int numColors = 12;
+
+        // the textbook O(n * k^2) traversal, recomputing every minimum
+        int[] colors = histogram.getColors();
+        int[] expected = new int[numColors];
+        expected[0] = histogram.getFirstColor();
+        for (int k = 1; k < numColors; k++) {
+            int farthest = -1;
+            double maxMinDistance = -1;
+            for (int rgb : colors) {
+                double minDistance = Double.MAX_VALUE;
+                for (int i = 0; i < k; i++) {
+                    minDistance = Math.min(minDistance, metric.colorDistance(rgb, expected[i]));
+                }
+                // the original rule: red and blue decide, green is masked out
+                if (minDistance > maxMinDistance || (minDistance == maxMinDistance
+                        && (rgb & 0xFF00FF) > (farthest & 0xFF00FF))) {
+                    maxMinDistance = minDistance;
+                    farthest = rgb;
+                }
+            }
+            expected[k] = farthest;
+        }
+
+        for (int parallelism : new int[] {1, 3}) {
+            Pixel[] palette = new ClusteringMapGenerator(metric, false, parallelism).generateColorPalette(histogram, numColors);
+            for (int k = 0; k < numColors; k++) {
+                assert palette[k].getRGB() == expected[k];
+            }
+        }
+
+        // 0x00FF00 and 0x000100 are equally far from 0x008000 and differ only
+        // in green, a full tie; the lower color wins whatever the pixel order
+        ColorHistogram tie = ColorHistogram.of(new PackedRaster(3, 1, new int[] {0x008000, 0x00FF00, 0x000100}));
+        Pixel[] tiePalette = new ClusteringMapGenerator(metric).generateColorPalette(tie, 2);
+        assert tiePalette[1].getRGB() == 0x000100;
+    }
+
+    void testMiniBatchQuality() {
+        ColorHistogram histogram = blobHistogram(9, 50000, 6, 40, 30);
+        SquaredEuclideanMetric metric = new SquaredEuclideanMetric();
+
+        MiniBatchMapGenerator miniBatch = new MiniBatchMapGenerator(metric);
+        Pixel[] palette = miniBatch.generateColorPalette(histogram, 16);
+        assert palette.length == 16;
+        PackedColorMap miniBatchMap = miniBatch.generatePackedColorMap(histogram, palette);
+        assert miniBatchMap.size() == histogram.size();
+
+        ClusteringMapGenerator lloyd = new ClusteringMapGenerator(metric, true);
+        PackedColorMap lloydMap = lloyd.generatePackedColorMap(histogram, lloyd.generateColorPalette(histogram, 16));
+
+        // a small, bounded quality loss against full weighted k-means
+        double miniBatchError = histogram.distortion(miniBatchMap, metric);
+        double lloydError = histogram.distortion(lloydMap, metric);
+        assert miniBatchError < lloydError * 1.25;
+
+        // the Pixel[][] entry points agree with the histogram ones
+        Map<Pixel, Pixel> colorMap = miniBatch.generateColorMap(testImage, miniBatch.generateColorPalette(testImage, 3));
+        assert colorMap.size() == 5;
+    }
+
+    void testConvergencePolicy() {
+        Random random = new Random(10);
+        int[] data = new int[5000];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = random.nextInt(1 << 24);
+        }
+        ColorHistogram histogram = ColorHistogram.of(new PackedRaster(data.length, 1, data));
+        SquaredEuclideanMetric metric = new SquaredEuclideanMetric();
+
+        // the default policy runs until nothing moves
+        ClusteringMapGenerator untilConverged = new ClusteringMapGenerator(metric);
+        Pixel[] palette = untilConverged.generateColorPalette(histogram, 8);
+        untilConverged.generatePackedColorMap(histogram, palette);
+        assert untilConverged.getLastStopReason() == ConvergencePolicy.StopReason.CONVERGED;
+        int fullIterations = untilConverged.getLastIterationCount();
+        assert fullIterations > 2;
+
+        ClusteringMapGenerator capped = new ClusteringMapGenerator(metric, false, 1,
+                new ConvergencePolicy(2, 0, 0, 0));
+        PackedColorMap cappedMap = capped.generatePackedColorMap(histogram, palette);
+        assert capped.getLastStopReason() == ConvergencePolicy.StopReason.MAX_ITERATIONS;
+        assert capped.getLastIterationCount() == 2;
+        assert cappedMap.size() == histogram.size();
+
+        ClusteringMapGenerator coarseShift = new ClusteringMapGenerator(metric, false, 1,
+                new ConvergencePolicy(10000, 1000, 0, 0));
+        coarseShift.generatePackedColorMap(histogram, palette);
+        assert coarseShift.getLastStopReason() == ConvergencePolicy.StopReason.CENTROID_SHIFT;
+        assert coarseShift.getLastIterationCount() == 1;
+
+        ClusteringMapGenerator slowImprovement = new ClusteringMapGenerator(metric, false, 1,
+                new ConvergencePolicy(10000, 0, 0.5, 0));
+        slowImprovement.generatePackedColorMap(histogram, palette);
+        assert slowImprovement.getLastStopReason() == ConvergencePolicy.StopReason.INERTIA_IMPROVEMENT;
+        assert slowImprovement.getLastIterationCount() < fullIterations;
+
+        try {
+            new ClusteringMapGenerator(metric, false, 1, null);
+            assert false;
+        } catch (IllegalArgumentException expected) {
+            // a policy is required
+        }
+    }
+
+    void testMedianCut() {
+        ColorHistogram histogram = blobHistogram(11, 40000, 5, 50, 20);
+        SquaredEuclideanMetric metric = new SquaredEuclideanMetric();
+
+        MedianCutMapGenerator medianCut = new MedianCutMapGenerator();
+        Pixel[] palette = medianCut.generateColorPalette(histogram, 16);
+        assert palette.length == 16;
+        for (Pixel color : palette) {
+            assert color != null;
+        }
+        PackedColorMap medianCutMap = medianCut.generatePackedColorMap(histogram, palette);
+        assert medianCutMap.size() == histogram.size();
+
+        // far better than fixed buckets, and k-means seeded from it is no worse
+        BucketingMapGenerator bucketing = new BucketingMapGenerator();
+        PackedColorMap bucketMap = bucketing.generatePackedColorMap(histogram, bucketing.generateColorPalette(histogram, 16));
+        double medianCutError = histogram.distortion(medianCutMap, metric);
+        assert medianCutError < histogram.distortion(bucketMap, metric);
+
+        ClusteringMapGenerator seeded = new ClusteringMapGenerator(metric, medianCut);
+        Pixel[] seeds = seeded.generateColorPalette(histogram, 16);
+        for (int k = 0; k < 16; k++) {
+            assert seeds[k].equals(palette[k]);
+        }
+        PackedColorMap refined = seeded.generatePackedColorMap(histogram, seeds);
+        assert histogram.distortion(refined, metric) <= medianCutError * 1.01;
+
+        // fewer distinct colors than requested leaves null entries
+        Pixel[] small = medianCut.generateColorPalette(testImage, 10);
+        int present = 0;
+        for (Pixel color : small) {
+            if (color != null) present++;
+        }
+        assert present == 5;
+        Map<Pixel, Pixel> colorMap = medianCut.generateColorMap(testImage, small);
+        for (Map.Entry<Pixel, Pixel> entry : colorMap.entrySet()) {
+            assert entry.getKey().equals(entry.getValue());
+        }
+    }
+
+    void testOctree() {
+        PackedRaster raster = new PackedRaster(200, 200, blobPixels(12, 40000, 5, 50, 20));
+        ColorHistogram histogram = ColorHistogram.of(raster);
+        SquaredEuclideanMetric metric = new SquaredEuclideanMetric();
+
+        OctreeMapGenerator octree = new OctreeMapGenerator();
+        // streamed straight from the raster, no histogram needed
+        Pixel[] palette = octree.generateColorPalette(raster, 16);
+        assert palette.length == 16;
+        assert palette[0] != null;
+        PackedColorMap octreeMap = octree.generatePackedColorMap(histogram, palette);
+        assert octreeMap.size() == histogram.size();
+
+        BucketingMapGenerator bucketing = new BucketingMapGenerator();
+        PackedColorMap bucketMap = bucketing.generatePackedColorMap(histogram, bucketing.generateColorPalette(histogram, 16));
+        assert histogram.distortion(octreeMap, metric) < histogram.distortion(bucketMap, metric);
+
+        // with room for every color nothing is reduced, so the palette is exact
+        Pixel[] exact = octree.generateColorPalette(testImage, 8);
+        java.util.Set<Pixel> distinct = new java.util.HashSet<>();
+        for (Pixel[] column : testImage) {
+            distinct.addAll(java.util.Arrays.asList(column));
+        }
+        int present = 0;
+        for (Pixel color : exact) {
+            if (color != null) {
+                assert distinct.contains(color);
+                present++;
+            }
+        }
+        assert present == distinct.size();
+
+        Pixel[] single = octree.generateColorPalette(histogram, 1);
+        assert single[0] != null;
+    }
+
+    void testWu() {
+        ColorHistogram histogram = blobHistogram(13, 40000, 6, 40, 30);
+        SquaredEuclideanMetric metric = new SquaredEuclideanMetric();
+
+        WuMapGenerator wu = new WuMapGenerator();
+        Pixel[] palette = wu.generateColorPalette(histogram, 16);
+        for (Pixel color : palette) {
+            assert color != null;
+        }
+        PackedColorMap wuMap = wu.generatePackedColorMap(histogram, palette);
+        assert wuMap.size() == histogram.size();
+
+        // close to weighted k-means, and a refinement pass only improves it
+        ClusteringMapGenerator lloyd = new ClusteringMapGenerator(metric, true);
+        PackedColorMap lloydMap = lloyd.generatePackedColorMap(histogram, lloyd.generateColorPalette(histogram, 16));
+        double wuError = histogram.distortion(wuMap, metric);
+        assert wuError < histogram.distortion(lloydMap, metric) * 1.25;
+
+        ClusteringMapGenerator refined = new ClusteringMapGenerator(metric, true, 1,
+                new ConvergencePolicy(3, 0, 0, 0), wu);
+        PackedColorMap refinedMap = refined.generatePackedColorMap(histogram, refined.generateColorPalette(histogram, 16));
+        assert histogram.distortion(refinedMap, metric) <= wuError;
+
+        // distinct colors in separate grid cells are kept exactly
+        Pixel[] exact = wu.generateColorPalette(testImage, 8);
+        Map<Pixel, Pixel> colorMap = wu.generateColorMap(testImage, exact);
+        for (Map.Entry<Pixel, Pixel> entry : colorMap.entrySet()) {
+            assert entry.getKey().equals(entry.getValue());
+        }
+    }
+
+    void testBatchDistances() {
+        Random random = new Random(14);
+        Pixel[] palette = new Pixel[12];
+        for (int i = 0; i < palette.length; i++) {
+            // leave a gap to check that null entries are skipped
+            palette[i] = (i == 5) ? null : Pixel.fromRGB(random.nextInt(1 << 24));
+        }
+        PaletteBuffer buffer = new PaletteBuffer(palette);
+        assert buffer.size() == 11;
+        assert buffer.paletteIndex(5) == 6;
+
+        int[] colors = new int[50];
+        for (int i = 0; i < colors.length; i++) {
+            colors[i] = random.nextInt(1 << 24);
+        }
+
+        for (DistanceMetric_Inter metric : new DistanceMetric_Inter[] {new SquaredEuclideanMetric(), new CircularHueMetric()}) {
+            double[] distances = new double[buffer.size()];
+            for (int rgb : colors) {
+                metric.colorDistances(rgb, buffer, distances);
+                for (int n = 0; n < buffer.size(); n++) {
+                    assert distances[n] == metric.colorDistance(rgb, buffer.getRGB(n));
+                }
+            }
+
+            double[] block = new double[colors.length * buffer.size()];
+            metric.colorDistances(colors, 0, colors.length, buffer, block);
+            for (int p = 0; p < colors.length; p++) {
+                for (int n = 0; n < buffer.size(); n++) {
+                    assert block[p * buffer.size() + n] == metric.colorDistance(colors[p], buffer.getRGB(n));
+                }
+            }
+        }
+    }
+
+    void testFeatureProjection() {
+        Random random = new Random(15);
+        // enough colors to build the shared hue table
+        int[] colors = new int[HueTable.BUILD_THRESHOLD];
+        for (int i = 0; i < colors.length; i++) {
+            colors[i] = random.nextInt(1 << 24);
+        }
+
+        for (ProjectedMetric_Inter metric : new ProjectedMetric_Inter[] {new SquaredEuclideanMetric(), new CircularHueMetric()}) {
+            int dimension = metric.featureDimension();
+            assert dimension > 0;
+            float[] features = new float[colors.length * dimension];
+            metric.project(colors, 0, colors.length, features, 0);
+
+            // one color at a time projects the same as a batch
+            float[] single = new float[dimension];
+            for (int p = 0; p < 100; p++) {
+                metric.project(colors[p], single, 0);
+                assert Arrays.equals(single, Arrays.copyOfRange(features, p * dimension, (p + 1) * dimension));
+            }
+
+            double[] distances = new double[colors.length];
+            for (int q = 0; q < 20; q++) {
+                metric.featureDistances(features, q * dimension, features, 0, colors.length, distances);
+                for (int n = 0; n < colors.length; n += 97) {
+                    assert distances[n] == metric.colorDistance(colors[q], colors[n]);
+                }
+            }
+        }
+        assert HueTable.isBuilt();
+        for (int i = 0; i < 1000; i++) {
+            assert HueTable.hueOf(colors[i]) == Pixel.fromRGB(colors[i]).getHue();
+        }
+
+        // metrics without a projection keep working through colorDistance
+        DistanceMetric_Inter plain = (p1, p2) -> Math.abs(p1.getRed() - p2.getRed());
+        assert !(plain instanceof ProjectedMetric_Inter);
+        Pixel[] palette = new ClusteringMapGenerator(plain).generateColorPalette(testImage, 3);
+        assert palette[2] != null;
+    }
+
+    void testHueClustering() {
+        Random random = new Random(16);
+        int[] data = new int[30000];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = random.nextInt(1 << 24);
+        }
+        ColorHistogram histogram = ColorHistogram.of(new PackedRaster(data.length, 1, data));
+        CircularHueMetric metric = new CircularHueMetric();
+
+        HueClusteringMapGenerator hue = new HueClusteringMapGenerator();
+        Pixel[] palette = hue.generateColorPalette(histogram, 8);
+        assert palette[0].getRGB() == histogram.getFirstColor();
+        for (Pixel color : palette) {
+            assert color != null;
+        }
+        PackedColorMap hueMap = hue.generatePackedColorMap(histogram, palette);
+        assert hueMap.size() == histogram.size();
+
+        // about as good as clustering every distinct color under the same metric
+        ClusteringMapGenerator clustering = new ClusteringMapGenerator(metric);
+        PackedColorMap clusteringMap = clustering.generatePackedColorMap(histogram, clustering.generateColorPalette(histogram, 8));
+        double hueError = histogram.distortion(hueMap, metric);
+        double clusteringError = histogram.distortion(clusteringMap, metric);
+        assert hueError < clusteringError * 1.1;
+
+        // bins are weighted by pixels by default, so a few common reds pull a
+        // centroid to themselves rather than being outvoted by rare colors
+        int[] mostlyRed = new int[30000];
+        for (int i = 0; i < mostlyRed.length; i++) {
+            mostlyRed[i] = (i % 3 != 0) ? 0xFF0000 | (i % 4) : random.nextInt(1 << 24);
+        }
+        ColorHistogram skewed = ColorHistogram.of(new PackedRaster(mostlyRed.length, 1, mostlyRed));
+        HueClusteringMapGenerator unweighted = new HueClusteringMapGenerator(false);
+        PackedColorMap weightedMap = hue.generatePackedColorMap(skewed, hue.generateColorPalette(skewed, 4));
+        PackedColorMap unweightedMap = unweighted.generatePackedColorMap(skewed, unweighted.generateColorPalette(skewed, 4));
+        assert skewed.distortion(weightedMap, metric) < skewed.distortion(unweightedMap, metric);
+
+        // gray pixels all have hue 0, so the palette cannot grow past the
+        // occupied bins
+        Pixel[] grays = hue.generateColorPalette(new Pixel[][] {{new Pixel(0, 0, 0), new Pixel(90, 90, 90)},
+                {new Pixel(255, 0, 0), new Pixel(0, 0, 255)}}, 4);
+        assert grays[1] != null && grays[2] == null && grays[3] == null;
+
+        // an initial palette with no entries is seeded rather than failing
+        ColorHistogram small = ColorHistogram.of(PackedRaster.fromPixelMatrix(testImage));
+        PackedColorMap seeded = hue.generatePackedColorMap(small, new Pixel[3]);
+        for (int rgb : small.getColors()) {
+            assert seeded.containsColor(rgb);
+        }
+        try {
+            hue.generatePackedColorMap(small, new Pixel[0]);
+            assert false;
+        } catch (IllegalArgumentException expected) {
+            // a palette of no colors at all cannot be seeded
+        }
+    }
+
+    void testBmpReader() {
+        try {
+            Random random = new Random(17);
+
+            // an odd width forces row padding; ImageIO writes rows bottom-up
+            for (int[] size : new int[][] {{7, 5}, {1100, 1000}}) {
+                int[] data = new int[size[0] * size[1]];
+                for (int i = 0; i < data.length; i++) {
+                    data[i] = random.nextInt(1 << 24);
+                }
+                File file = File.createTempFile("bmpreader", ".bmp");
+                file.deleteOnExit();
+                Util.saveRasterToBitmap(file.getPath(), new PackedRaster(size[0], size[1], data));
+
+                PackedRaster read = BmpReader.read(file.getPath());
+                assert read.getWidth() == size[0] && read.getHeight() == size[1];
+                assert java.util.Arrays.equals(read.getData(), data);
+            }
+
+            // a hand-built 32 bit top-down file: 3x2 pixels, alpha ignored
+            int[] pixels = {0x112233, 0x445566, 0x778899, 0xAABBCC, 0xDDEEFF, 0x000001};
+            java.nio.ByteBuffer bytes = java.nio.ByteBuffer.allocate(54 + 4 * pixels.length)
+                    .order(java.nio.ByteOrder.LITTLE_ENDIAN);
+            bytes.put((byte) 'B').put((byte) 'M').putInt(bytes.capacity()).putInt(0).putInt(54);
+            bytes.putInt(40).putInt(3).putInt(-2).putShort((short) 1).putShort((short) 32).putInt(0)
+                    .putInt(4 * pixels.length).putInt(2835).putInt(2835).putInt(0).putInt(0);
+            for (int rgb : pixels) {
+                bytes.putInt(0x7F000000 | rgb);
+            }
+            File file = File.createTempFile("bmpreader32", ".bmp");
+            file.deleteOnExit();
+            java.nio.file.Files.write(file.toPath(), bytes.array());
+
+            PackedRaster read = BmpReader.read(file.getPath());
+            assert read.getWidth() == 3 && read.getHeight() == 2;
+            assert java.util.Arrays.equals(read.getData(), pixels);
+            assert read.getRGB(0, 1) == 0xAABBCC;
+
+            // the file constructor goes through the reader
+            ColorQuantizer quantizer = new ColorQuantizer(file.getPath(), new BucketingMapGenerator());
+            assert quantizer.quantizeToRaster(8).size() == 6;
+        } catch (IOException e) {
+            throw new java.io.UncheckedIOException(e);
+        }
+    }
+
+    void testBmpWriter() {
+        try {
+            Random random = new Random(18);
+            int width = 37;
+            int height = 23;
+            for (int paletteSize : new int[] {2, 16, 200}) {
+                int[] palette = new int[paletteSize];
+                for (int i = 0; i < paletteSize; i++) {
+                    palette[i] = random.nextInt(1 << 24);
+                }
+                // flat stretches and noise, so RLE uses both kinds of run
+                byte[] indices = new byte[width * height];
+                for (int i = 0; i < indices.length; i++) {
+                    indices[i] = (byte) ((i % width < 20) ? (i / width) % paletteSize : random.nextInt(paletteSize));
+                }
+
+                for (boolean compress : new boolean[] {false, true}) {
+                    File file = File.createTempFile("bmpwriter", ".bmp");
+                    file.deleteOnExit();
+                    BmpWriter.writeIndexed(file.getPath(), width, height, palette, indices, compress);
+
+                    BufferedImage image = ImageIO.read(file);
+                    assert image.getWidth() == width && image.getHeight() == height;
+                    for (int y = 0; y < height; y++) {
+                        for (int x = 0; x < width; x++) {
+                            assert (image.getRGB(x, y) & 0xFFFFFF) == palette[indices[y * width + x] & 0xFF];
+                        }
+                    }
+                    // smaller than the same image at 24 bits per pixel
+                    assert file.length() < 54 + 3L * width * height;
+                }
+            }
+
+            // the quantizer writes indexed files that read back to the same colors
+            File file = File.createTempFile("bmpwriter-quantizer", ".bmp");
+            file.deleteOnExit();
+            ColorQuantizer quantizer = new ColorQuantizer(testImage, new ClusteringMapGenerator(new SquaredEuclideanMetric()));
+            quantizer.quantizeToBMP(file.getPath(), 4, true);
+            assert Arrays.equals(BmpReader.read(file.getPath()).getData(), quantizer.quantizeToRaster(4).getData());
+        } catch (IOException e) {
+            throw new java.io.UncheckedIOException(e);
+        }
+    }
+
+    void testQuantizedImage() {
+        Random random = new Random(19);
+        int width = 29;
+        int height = 11;
+        int[] data = new int[width * height];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = random.nextInt(1 << 24);
+        }
+        PackedRaster raster = new PackedRaster(width, height, data);
+
+        for (int numColors : new int[] {2, 3, 16, 200, 300}) {
+            ColorQuantizer quantizer = new ColorQuantizer(raster, new BucketingMapGenerator());
+            QuantizedImage quantized = quantizer.quantize(numColors);
+            assert quantized.getWidth() == width && quantized.getHeight() == height;
+            assert quantized.getBitsPerIndex() == QuantizedImage.bitsPerIndex(numColors);
+
+            // every view shows the same colors
+            PackedRaster expanded = quantized.toRaster();
+            Pixel[][] matrix = quantizer.quantizeTo2DArray(numColors);
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    int index = quantized.getIndex(x, y);
+                    assert index >= 0 && index < numColors;
+                    assert expanded.getRGB(x, y) == quantized.getPaletteRGB()[index];
+                    assert matrix[x][y].getRGB() == expanded.getRGB(x, y);
+                }
+            }
+            assert Arrays.equals(expanded.getData(), quantizer.quantizeToRaster(numColors).getData());
+
+            // at most 16 colors are bit-packed
+            if (numColors <= 16) {
+                assert quantized.getSizeInBytes() <= (long) height * ((width * 4 + 7) / 8) + 4 * numColors;
+            }
+
+            // packed rows are written as they are, or converted row by row
+            for (boolean compress : new boolean[] {false, true}) {
+                try {
+                    File file = File.createTempFile("quantized", ".bmp");
+                    file.deleteOnExit();
+                    quantized.writeBMP(file.getPath(), compress);
+                    BufferedImage image = ImageIO.read(file);
+                    for (int y = 0; y < height; y++) {
+                        for (int x = 0; x < width; x++) {
+                            assert (image.getRGB(x, y) & 0xFFFFFF) == expanded.getRGB(x, y);
+                        }
+                    }
+                } catch (IOException e) {
+                    throw new java.io.UncheckedIOException(e);
+                }
+            }
+        }
+
+        // packed indices do not disturb their neighbours
+        QuantizedImage packed = new QuantizedImage(5, 2, new int[] {0, 1, 2, 3});
+        for (int i = 0; i < 10; i++) {
+            packed.setIndex(i % 5, i / 5, i % 4);
+        }
+        for (int i = 0; i < 10; i++) {
+            assert packed.getIndex(i % 5, i / 5) == i % 4;
+        }
+    }
+
+    void testStreamingQuantizer() {
+        try {
+            Random random = new Random(20);
+            int width = 50;
+            int height = 37;
+            int[] data = new int[width * height];
+            for (int i = 0; i < data.length; i++) {
+                data[i] = random.nextInt(1 << 24);
+            }
+            PackedRaster raster = new PackedRaster(width, height, data);
+            File input = File.createTempFile("streaming-in", ".bmp");
+            input.deleteOnExit();
+            Util.saveRasterToBitmap(input.getPath(), raster);
+
+            ColorHistogram histogram = ColorHistogram.of(raster);
+            StreamingQuantizer streaming = new StreamingQuantizer(new MedianCutMapGenerator(), 8);
+            ColorHistogram streamed = streaming.histogram(input.getPath());
+            assert Arrays.equals(streamed.getColors(), histogram.getColors());
+            assert Arrays.equals(streamed.getCounts(), histogram.getCounts());
+            assert streamed.getFirstColor() == histogram.getFirstColor();
+
+            // indexed and 24 bit output both match quantizing in memory
+            for (int numColors : new int[] {16, 300}) {
+                File output = File.createTempFile("streaming-out", ".bmp");
+                output.deleteOnExit();
+                streaming.quantize(input.getPath(), output.getPath(), numColors);
+
+                PackedRaster expected = new ColorQuantizer(raster, new MedianCutMapGenerator()).quantizeToRaster(numColors);
+                assert Arrays.equals(BmpReader.read(output.getPath()).getData(), expected.getData());
+                assert output.length() == BmpWriter.StripWriter.fileSize(width, height, numColors);
+            }
+
+            // a 30000x30000 image (a sparse file) would give a 24 bit output
+            // over 2 GB, which is refused before the image is read
+            File huge = File.createTempFile("streaming-huge", ".bmp");
+            huge.deleteOnExit();
+            try (java.io.RandomAccessFile file = new java.io.RandomAccessFile(huge, "rw")) {
+                byte[] header = java.nio.file.Files.readAllBytes(input.toPath());
+                java.nio.ByteBuffer fields = java.nio.ByteBuffer.wrap(header).order(java.nio.ByteOrder.LITTLE_ENDIAN);
+                fields.putInt(18, 30000).putInt(22, 30000);
+                file.write(header, 0, 54);
+                file.setLength(54 + 90000L * 30000);
+            }
+            File hugeOutput = File.createTempFile("streaming-out", ".bmp");
+            hugeOutput.deleteOnExit();
+            try {
+                streaming.quantize(huge.getPath(), hugeOutput.getPath(), 300);
+                assert false;
+            } catch (IOException expected) {
+                assert expected.getMessage().contains("2 GB");
+            }
+        } catch (IOException e) {
+            throw new java.io.UncheckedIOException(e);
+        }
+    }
+
+    void testParallelRemap() {
+        Random random = new Random(21);
+        // several bands, with flat runs and noise
+        int width = 301;
+        int height = 700;
+        int[] data = new int[width * height];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (i % 7 == 0) ? random.nextInt(1 << 24) : ((i / width) * 40503 + (i % width) / 9 * 977) & 0xFFFFFF;
+        }
+        PackedRaster raster = new PackedRaster(width, height, data);
+        ColorHistogram histogram = ColorHistogram.of(raster);
+        WuMapGenerator wu = new WuMapGenerator();
+
+        for (int numColors : new int[] {4, 100}) {
+            PackedColorMap colorMap = wu.generatePackedColorMap(histogram, wu.generateColorPalette(histogram, numColors));
+            int[] paletteRGB = colorMap.getPaletteRGB();
+
+            PackedRaster colors = new PackedRaster(width, height);
+            RemapEngine.remap(raster, colorMap, colors);
+            QuantizedImage indices = new QuantizedImage(width, height, paletteRGB);
+            RemapEngine.remap(raster, colorMap, indices);
+            for (int i = 0; i < data.length; i++) {
+                int index = colorMap.indexOf(data[i]);
+                assert colors.getData()[i] == paletteRGB[index];
+                assert indices.getIndex(i % width, i / width) == index;
+            }
+        }
+
+        // one output buffer reused for several quantizations
+        ColorQuantizer quantizer = new ColorQuantizer(raster, wu);
+        PackedRaster target = new PackedRaster(width, height);
+        for (int numColors : new int[] {8, 32}) {
+            assert quantizer.quantizeToRaster(numColors, target) == target;
+            assert Arrays.equals(target.getData(), quantizer.quantize(numColors).toRaster().getData());
+        }
+
+        // a color missing from the map is an error in both modes, never a
+        // stray index
+        PackedColorMap partial = new PackedColorMap(new int[] {data[1]}, new int[] {0}, new Pixel[] {Pixel.fromRGB(0)});
+        PackedRaster mixed = new PackedRaster(2, 1, new int[] {data[1], data[1] ^ 1});
+        try {
+            RemapEngine.remap(mixed, partial, new PackedRaster(2, 1));
+            assert false;
+        } catch (IllegalArgumentException expected) {
+            // missing from the map
+        }
+        try {
+            RemapEngine.remap(mixed, partial, new QuantizedImage(2, 1, partial.getPaletteRGB()));
+            assert false;
+        } catch (IllegalArgumentException expected) {
+            // missing from the map
+        }
+    }
+
+    void testBatchQuantizer() {
+        try {
+            java.nio.file.Path inputDir = java.nio.file.Files.createTempDirectory("batch-in");
+            java.nio.file.Path outputDir = inputDir.resolve("out");
+            Random random = new Random(22);
+            PackedRaster[] rasters = new PackedRaster[5];
+            for (int n = 0; n < rasters.length; n++) {
+                int[] data = new int[40 * 30];
+                for (int i = 0; i < data.length; i++) {
+                    data[i] = random.nextInt(1 << 24);
+                }
+                rasters[n] = new PackedRaster(40, 30, data);
+                Util.saveRasterToBitmap(inputDir.resolve("image" + n + ".bmp").toString(), rasters[n]);
+            }
+            // not a BMP, so neither listed nor quantized
+            java.nio.file.Files.write(inputDir.resolve("notes.txt"), new byte[] {1, 2, 3});
+
+            java.util.List<java.nio.file.Path> inputs = BatchQuantizer.findInputs(inputDir.toString());
+            assert inputs.size() == rasters.length;
+            assert BatchQuantizer.findInputs(inputDir.resolve("image[0-2].bmp").toString()).size() == 3;
+
+            // fewer slots than images, so the pipeline has to wait on itself
+            BatchQuantizer batch = new BatchQuantizer(BatchQuantizer.generatorNamed("mediancut"), 8, 2, 2, 2);
+            java.util.List<BatchQuantizer.Result> results = batch.run(inputs, outputDir);
+            assert results.size() == rasters.length;
+            for (int n = 0; n < rasters.length; n++) {
+                BatchQuantizer.Result result = results.get(n);
+                assert result.succeeded();
+                assert result.getPixels() == 40 * 30;
+                PackedRaster expected = new ColorQuantizer(rasters[n], new MedianCutMapGenerator()).quantizeToRaster(8);
+                assert Arrays.equals(BmpReader.read(result.getOutput()).getData(), expected.getData());
+            }
+
+            // writing next to the inputs would overwrite them, so it is refused
+            long before = java.nio.file.Files.size(inputs.get(0));
+            try {
+                batch.run(inputs, inputDir);
+                assert false;
+            } catch (IllegalArgumentException expected) {
+                assert java.nio.file.Files.size(inputs.get(0)) == before;
+            }
+
+            // two inputs with the same file name would share an output
+            java.nio.file.Path otherDir = java.nio.file.Files.createDirectory(inputDir.resolve("other"));
+            java.nio.file.Path sameName = java.nio.file.Files.copy(inputs.get(0), otherDir.resolve("image0.bmp"));
+            java.nio.file.Path clashDir = inputDir.resolve("clash");
+            try {
+                batch.run(java.util.List.of(inputs.get(0), sameName), clashDir);
+                assert false;
+            } catch (IllegalArgumentException expected) {
+                assert !java.nio.file.Files.exists(clashDir.resolve("image0.bmp"));
+            }
+
+            // a broken file fails on its own without stopping the rest
+            java.nio.file.Path broken = inputDir.resolve("broken.bmp");
+            java.nio.file.Files.write(broken, new byte[] {'B', 'M', 0});
+            results = batch.run(BatchQuantizer.findInputs(inputDir.toString()), outputDir);
+            int failed = 0;
+            for (BatchQuantizer.Result result : results) {
+                if (!result.succeeded()) {
+                    failed++;
+                    assert result.getInput().equals(broken);
+                }
+            }
+            assert failed == 1;
+        } catch (IOException e) {
+            throw new java.io.UncheckedIOException(e);
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    void testPaletteCache() {
+        Random random = new Random(23);
+        int[] data = new int[80 * 60];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = ((i % 80) * 3 << 16) | ((i / 80) * 4 << 8) | random.nextInt(8);
+        }
+        PackedRaster raster = new PackedRaster(80, 60, data);
+        // a near duplicate: a handful of pixels nudged by one step
+        int[] nudged = data.clone();
+        for (int i = 0; i < nudged.length; i += 97) {
+            nudged[i] ^= 1;
+        }
+        PackedRaster nearDuplicate = new PackedRaster(80, 60, nudged);
+        assert PaletteCache.fingerprint(ColorHistogram.of(raster)) == PaletteCache.fingerprint(ColorHistogram.of(nearDuplicate));
+
+        PaletteCache cache = new PaletteCache(4);
+        CachingMapGenerator cached = new CachingMapGenerator(new ClusteringMapGenerator(new SquaredEuclideanMetric()), cache);
+
+        // the first image is a miss and quantizes exactly as without the cache
+        PackedRaster expected = new ColorQuantizer(raster, new ClusteringMapGenerator(new SquaredEuclideanMetric())).quantizeToRaster(8);
+        assert Arrays.equals(new ColorQuantizer(raster, cached).quantizeToRaster(8).getData(), expected.getData());
+        assert cache.getMisses() == 1 && cache.getHits() == 0 && cache.size() == 1;
+
+        // the same image again reuses the cached map
+        assert Arrays.equals(new ColorQuantizer(raster, cached).quantizeToRaster(8).getData(), expected.getData());
+        assert cache.getHits() == 1;
+
+        // a near duplicate reuses the palette, mapping each color to its nearest entry
+        QuantizedImage near = new ColorQuantizer(nearDuplicate, cached).quantize(8);
+        assert cache.getHits() == 2 && cache.size() == 1;
+        Set<Integer> palette = new HashSet<>();
+        for (int rgb : expected.getData()) {
+            palette.add(rgb);
+        }
+        SquaredEuclideanMetric metric = new SquaredEuclideanMetric();
+        for (int y = 0; y < 60; y++) {
+            for (int x = 0; x < 80; x++) {
+                int rgb = near.getRGB(x, y);
+                assert palette.contains(rgb);
+                for (int other : palette) {
+                    assert metric.colorDistance(Pixel.fromRGB(nudged[y * 80 + x]), Pixel.fromRGB(rgb))
+                            <= metric.colorDistance(Pixel.fromRGB(nudged[y * 80 + x]), Pixel.fromRGB(other));
+                }
+            }
+        }
+
+        // a different number of colors is a different entry
+        new ColorQuantizer(raster, cached).quantize(4);
+        assert cache.getMisses() == 2 && cache.size() == 2;
+
+        // generators without an identity never share entries, even when
+        // they wrap the same kind of generator
+        PaletteCache separate = new PaletteCache(4);
+        for (int n = 0; n < 2; n++) {
+            new ColorQuantizer(raster, new CachingMapGenerator(new WuMapGenerator(), separate)).quantize(8);
+        }
+        assert separate.getMisses() == 2 && separate.size() == 2;
+
+        // least recently used entries go first
+        PaletteCache small = new PaletteCache(2);
+        CachingMapGenerator wu = new CachingMapGenerator(new WuMapGenerator(), small);
+        for (int n = 0; n < 3; n++) {
+            int[] flat = new int[16];
+            Arrays.fill(flat, 0x102030 * (n + 1));
+            new ColorQuantizer(new PackedRaster(4, 4, flat), wu).quantize(2);
+        }
+        assert small.size() == 2 && small.getEvictions() == 1 && small.getMisses() == 3;
+
+        // and a byte budget evicts as well
+        PaletteCache budget = new PaletteCache(100, cache.getSizeInBytes() / 2 + 1);
+        CachingMapGenerator tight = new CachingMapGenerator(new WuMapGenerator(), budget);
+        new ColorQuantizer(raster, tight).quantize(8);
+        new ColorQuantizer(raster, tight).quantize(4);
+        assert budget.size() == 1 && budget.getSizeInBytes() <= cache.getSizeInBytes() / 2 + 1;
+
+        // an entry whose exact hash matches but whose colors do not (a hash
+        // collision) is remapped rather than reused as is
+        PaletteCache collided = new PaletteCache(4);
+        CachingMapGenerator shared = new CachingMapGenerator(new ClusteringMapGenerator(new SquaredEuclideanMetric()),
+                collided, new SquaredEuclideanMetric(), "shared");
+        ColorHistogram histogram = ColorHistogram.of(raster);
+        PackedColorMap real = shared.generatePackedColorMap(histogram, shared.generateColorPalette(histogram, 8));
+        int[] fewer = Arrays.copyOf(histogram.getColors(), histogram.size() - 1);
+        int[] fewerIndices = new int[fewer.length];
+        for (int i = 0; i < fewer.length; i++) {
+            fewerIndices[i] = real.indexOf(fewer[i]);
+        }
+        PaletteCache.Key key = new PaletteCache.Key(PaletteCache.fingerprint(histogram), 8, "shared");
+        collided.put(key, new PaletteCache.Entry(new PackedColorMap(fewer, fewerIndices, real.getPalette()),
+                PaletteCache.exactHash(histogram)));
+        PackedColorMap remapped = shared.generatePackedColorMap(histogram, real.getPalette());
+        for (int rgb : histogram.getColors()) {
+            assert remapped.containsColor(rgb);
+        }
+    }
+
+    void testSequenceQuantizer() {
+        Random random = new Random(24);
+        int width = 120;
+        int height = 90;
+        ClusteringMapGenerator clustering = new ClusteringMapGenerator(new SquaredEuclideanMetric());
+        SequenceQuantizer sequence = new SequenceQuantizer(clustering, 16, 0.25);
+        SquaredEuclideanMetric metric = new SquaredEuclideanMetric();
+
+        for (int n = 0; n < 8; n++) {
+            // a slowly panning scene, then a cut to a different one at frame 6
+            boolean cut = n >= 6;
+            int[] data = new int[width * height];
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    int u = x + n;
+                    int rgb = cut ? ((y * 2) << 16) | ((255 - u) << 8) | 200
+                            : ((u * 2) << 16) | ((y * 2) << 8) | (random.nextInt(6) + 40);
+                    data[y * width + x] = rgb;
+                }
+            }
+            PackedRaster frame = new PackedRaster(width, height, data);
+            QuantizedImage quantized = sequence.quantizeFrame(frame);
+
+            int iterations = clustering.getLastIterationCount();
+            assert sequence.wasLastFrameReseeded() == (n == 0 || n == 6);
+            assert (n == 0) ? sequence.getLastDrift() == 1 : sequence.getLastDrift() < 1;
+
+            ColorHistogram histogram = ColorHistogram.of(frame);
+            ClusteringMapGenerator fresh = new ClusteringMapGenerator(new SquaredEuclideanMetric());
+            PackedColorMap full = fresh.generatePackedColorMap(histogram, fresh.generateColorPalette(histogram, 16));
+            if (!sequence.wasLastFrameReseeded()) {
+                // the palette of the frame before is already close, so k-means settles sooner
+                assert iterations < fresh.getLastIterationCount();
+            }
+
+            // and the result is as good as clustering the frame from scratch, give or take
+            double warmDistortion = 0;
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    warmDistortion += metric.colorDistance(data[y * width + x], quantized.getRGB(x, y));
+                }
+            }
+            assert warmDistortion <= 1.1 * histogram.distortion(full, metric);
+        }
+
+        // a frame that does not change at all is confirmed in one pass or two
+        int[] still = new int[width * height];
+        for (int i = 0; i < still.length; i++) {
+            still[i] = random.nextInt(1 << 24) & 0x3F3F3F;
+        }
+        sequence.quantizeFrame(new PackedRaster(width, height, still));
+        assert sequence.wasLastFrameReseeded();
+        sequence.quantizeFrame(new PackedRaster(width, height, still));
+        assert !sequence.wasLastFrameReseeded() && sequence.getLastDrift() == 0;
+        assert clustering.getLastIterationCount() <= 2;
+
+        // after a reset the next frame is seeded from scratch
+        sequence.reset();
+        sequence.quantizeFrame(new PackedRaster(4, 4, new int[16]));
+        assert sequence.wasLastFrameReseeded();
+    }
+
+    void testDithering() {
+        // a flat mid gray onto black and white should come out half and half
+        int[] gray = new int[64 * 64];
+        Arrays.fill(gray, 0x808080);
+        Pixel[] blackWhite = {Pixel.fromRGB(0x000000), Pixel.fromRGB(0xFFFFFF)};
+        PaletteIndex index = new PaletteIndex(new SquaredEuclideanMetric(), blackWhite);
+        int[] paletteRGB = {0x000000, 0xFFFFFF};
+        PackedRaster flat = new PackedRaster(64, 64, gray);
+
+        QuantizedImage diffused = new QuantizedImage(64, 64, paletteRGB);
+        DitherEngine.floydSteinberg(flat, index, diffused);
+        QuantizedImage ordered = new QuantizedImage(64, 64, paletteRGB);
+        DitherEngine.ordered(flat, index, ordered);
+        for (QuantizedImage dithered : new QuantizedImage[] {diffused, ordered}) {
+            int white = 0;
+            for (int y = 0; y < 64; y++) {
+                for (int x = 0; x < 64; x++) {
+                    white += dithered.getIndex(x, y);
+                }
+            }
+            assert Math.abs(white - 64 * 64 / 2) < 64 * 64 / 20;
+        }
+
+        // empty palette slots do not change the ordered threshold spread
+        Pixel[] padded = Arrays.copyOf(blackWhite, 8);
+        QuantizedImage paddedOrdered = new QuantizedImage(64, 64, Arrays.copyOf(paletteRGB, 8));
+        DitherEngine.ordered(flat, new PaletteIndex(new SquaredEuclideanMetric(), padded), paddedOrdered);
+        for (int y = 0; y < 64; y++) {
+            for (int x = 0; x < 64; x++) {
+                assert paddedOrdered.getIndex(x, y) == ordered.getIndex(x, y);
+            }
+        }
+
+        // a worker that fails stops the others and its error is rethrown;
+        // row 1 is pure red, which has no entry in the target's palette
+        int[] redRow = new int[300 * 8];
+        Arrays.fill(redRow, 0x808080);
+        Arrays.fill(redRow, 300, 600, 0xFF0000);
+        Pixel[] withRed = {Pixel.fromRGB(0x000000), Pixel.fromRGB(0xFFFFFF), Pixel.fromRGB(0xFF0000)};
+        boolean failed = false;
+        try {
+            DitherEngine.floydSteinberg(new PackedRaster(300, 8, redRow),
+                    new PaletteIndex(new SquaredEuclideanMetric(), withRed), new QuantizedImage(300, 8, paletteRGB), 3);
+        } catch (ArrayIndexOutOfBoundsException e) {
+            failed = true;
+        }
+        assert failed;
+
+        // the wavefront gives the same result as plain serial error diffusion,
+        // for any number of threads
+        Random random = new Random(25);
+        int width = 150;
+        int height = 61;
+        int[] data = new int[width * height];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = ((i % width) * 17 / 10 << 16) | ((i / width) * 4 << 8) | random.nextInt(256);
+        }
+        PackedRaster raster = new PackedRaster(width, height, data);
+        Pixel[] palette = new ColorQuantizer(raster, new WuMapGenerator()).quantize(12).getPalette();
+        int[] rgb = new int[palette.length];
+        for (int i = 0; i < palette.length; i++) {
+            rgb[i] = palette[i].getRGB();
+        }
+        PaletteIndex paletteIndex = new PaletteIndex(new SquaredEuclideanMetric(), palette);
+
+        int[] expected = new int[width * height];
+        int[][] error = new int[height + 1][3 * (width + 2)];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int[] channels = new int[3];
+                for (int c = 0; c < 3; c++) {
+                    int value = (data[y * width + x] >> (16 - 8 * c)) & 0xFF;
+                    channels[c] = Math.max(0, Math.min(255, value + error[y][3 * (x + 1) + c] / 16));
+                }
+                int nearest = paletteIndex.nearest((channels[0] << 16) | (channels[1] << 8) | channels[2]);
+                expected[y * width + x] = nearest;
+                for (int c = 0; c < 3; c++) {
+                    int e = channels[c] - ((rgb[nearest] >> (16 - 8 * c)) & 0xFF);
+                    error[y][3 * (x + 2) + c] += 7 * e;
+                    error[y + 1][3 * x + c] += 3 * e;
+                    error[y + 1][3 * (x + 1) + c] += 5 * e;
+                    error[y + 1][3 * (x + 2) + c] += e;
+                }
+            }
+        }
+        for (int threads : new int[] {1, 2, 5}) {
+            QuantizedImage dithered = new QuantizedImage(width, height, rgb);
+            DitherEngine.floydSteinberg(raster, paletteIndex, dithered, threads);
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    assert dithered.getIndex(x, y) == expected[y * width + x];
+                }
+            }
+        }
+
+        // a smooth ramp at few colors: dithering keeps local averages close
+        // to the original where plain replacement bands
+        int[] ramp = new int[256 * 16];
+        for (int i = 0; i < ramp.length; i++) {
+            int v = i % 256;
+            ramp[i] = (v << 16) | (v << 8) | v;
+        }
+        ColorQuantizer quantizer = new ColorQuantizer(new PackedRaster(256, 16, ramp), new MedianCutMapGenerator());
+        double[] bandError = new double[3];
+        DitherMode[] modes = {DitherMode.NONE, DitherMode.FLOYD_STEINBERG, DitherMode.ORDERED};
+        for (int m = 0; m < modes.length; m++) {
+            QuantizedImage quantized = quantizer.quantize(4, modes[m]);
+            // compare 8x8 block averages of the red channel
+            for (int bx = 0; bx < 256; bx += 8) {
+                for (int by = 0; by < 16; by += 8) {
+                    double sum = 0;
+                    double original = 0;
+                    for (int y = by; y < by + 8; y++) {
+                        for (int x = bx; x < bx + 8; x++) {
+                            sum += (quantized.getRGB(x, y) >> 16) & 0xFF;
+                            original += x;
+                        }
+                    }
+                    bandError[m] += Math.abs(sum - original) / 64;
+                }
+            }
+        }
+        assert bandError[1] < bandError[0] && bandError[2] < bandError[0];
+    }
+
     // ===================== UTILITY METHODS =====================
 
+    // n pixels in a few loose blobs of color, like a real photo: pixel i
+    // lies within spread of (i % blobs) * spacing in red and of its mirror
+    // image in green, with any blue
+    private int[] blobPixels(long seed, int n, int blobs, int spacing, int spread) {
+        Random random = new Random(seed);
+        int[] data = new int[n];
+        for (int i = 0; i < n; i++) {
+            int center = (i % blobs) * spacing;
+            data[i] = ((center + random.nextInt(spread)) << 16) | ((255 - center - random.nextInt(spread)) << 8)
+                    | random.nextInt(256);
+        }
+        return data;
+    }
+
+    // the histogram of blobPixels, as a single row
+    private ColorHistogram blobHistogram(long seed, int n, int blobs, int spacing, int spread) {
+        return ColorHistogram.of(new PackedRaster(n, 1, blobPixels(seed, n, blobs, spacing, spread)));
+    }
+
     private void printImageColors(Pixel[][] image) {
         for (Pixel[] row : image) {
             for (Pixel pixel : row) {
@@ -608,7 +1816,32 @@ public class ColorQuantizationTests {
             new TestMethod("Real Image Quantization", () -> tests.testRealImageQuantization()),
             new TestMethod("Multiple Color Reductions", () -> tests.testMultipleColorReductions()),
             new TestMethod("Hue-Based Quantization", () -> tests.testHueBasedQuantization()),
-            new TestMethod("Image Loading from File", () -> tests.testImageFromFile())
+            new TestMethod("Image Loading from File", () -> tests.testImageFromFile()),
+            new TestMethod("PackedRaster Round Trip", () -> tests.testPackedRasterRoundTrip()),
+            new TestMethod("PackedColorMap", () -> tests.testPackedColorMap()),
+            new TestMethod("ColorHistogram", () -> tests.testColorHistogram()),
+            new TestMethod("Weighted Clustering", () -> tests.testWeightedClustering()),
+            new TestMethod("Parallel Clustering Matches Serial", () -> tests.testParallelClusteringMatchesSerial()),
+            new TestMethod("Bounded Clustering Matches Lloyd", () -> tests.testBoundedClusteringMatchesLloyd()),
+            new TestMethod("PaletteIndex Matches Linear Scan", () -> tests.testPaletteIndexMatchesLinearScan()),
+            new TestMethod("Incremental Seeding Matches Naive", () -> tests.testIncrementalSeedingMatchesNaive()),
+            new TestMethod("Mini-Batch Quality", () -> tests.testMiniBatchQuality()),
+            new TestMethod("Convergence Policy", () -> tests.testConvergencePolicy()),
+            new TestMethod("Median Cut", () -> tests.testMedianCut()),
+            new TestMethod("Octree", () -> tests.testOctree()),
+            new TestMethod("Wu Quantizer", () -> tests.testWu()),
+            new TestMethod("Batch Distances", () -> tests.testBatchDistances()),
+            new TestMethod("Feature Projection", () -> tests.testFeatureProjection()),
+            new TestMethod("Hue Clustering", () -> tests.testHueClustering()),
+            new TestMethod("BMP Reader", () -> tests.testBmpReader()),
+            new TestMethod("BMP Writer", () -> tests.testBmpWriter()),
+            new TestMethod("Quantized Image", () -> tests.testQuantizedImage()),
+            new TestMethod("Streaming Quantizer", () -> tests.testStreamingQuantizer()),
+            new TestMethod("Parallel Remap", () -> tests.testParallelRemap()),
+            new TestMethod("Batch Quantizer", () -> tests.testBatchQuantizer()),
+            new TestMethod("Palette Cache", () -> tests.testPaletteCache()),
+            new TestMethod("Sequence Quantizer", () -> tests.testSequenceQuantizer()),
+            new TestMethod("Dithering", () -> tests.testDithering())
         };
         
         // Run all tests and track results
@@ -1,18 +1,24 @@
 
 
 import java.io.*;
-import java.util.Map;
-import java.awt.image.BufferedImage;
-import javax.imageio.ImageIO;
 
 public class ColorQuantizer implements ColorQuantizer_Inter {
 
-    private Pixel[][] pixelArray;
+    private PackedRaster raster;
     private ColorMapGenerator_Inter colorMapGenerator;
 
+    // built on first use and shared by every quantization of this image
+    private ColorHistogram histogram;
+
     public ColorQuantizer(Pixel[][] pixelArray, ColorMapGenerator_Inter gen) {
 
-        this.pixelArray = pixelArray;
+        this(PackedRaster.fromPixelMatrix(pixelArray), gen);
+
+    }
+
+    public ColorQuantizer(PackedRaster raster, ColorMapGenerator_Inter gen) {
+
+        this.raster = raster;
         this.colorMapGenerator = gen;
 
     }
@@ -20,8 +26,7 @@ public class ColorQuantizer implements ColorQuantizer_Inter {
     // read from the file with a bitmap reader
     public ColorQuantizer(String bmpFilename, ColorMapGenerator_Inter gen) {
         try {
-            BufferedImage image = ImageIO.read(new File(bmpFilename));
-            this.pixelArray = Util.convertBitmapToPixelMatrix(image);
+            this.raster = BmpReader.read(bmpFilename);
             this.colorMapGenerator = gen;
 
         } catch (IOException e) {
@@ -40,30 +45,99 @@ public class ColorQuantizer implements ColorQuantizer_Inter {
      *         color after quantization
      */
     public Pixel[][] quantizeTo2DArray(int numColors) {
+        return quantize(numColors).toPixelMatrix();
+    }
+
+    /**
+     * Performs color quantization using the color map generator specified when
+     * this quantizer was constructed.
+     *
+     * @param numColors number of colors to use for color quantization
+     * @return the palette together with the palette index of every pixel
+     */
+    public QuantizedImage quantize(int numColors) {
+        return quantize(numColors, DitherMode.NONE);
+    }
+
+    /**
+     * Performs color quantization, optionally dithering the image onto the
+     * palette instead of replacing each color with the one it is mapped to.
+     * Dithering looks up the closest palette color by squared Euclidean
+     * distance, whatever metric the generator uses.
+     *
+     * @param numColors number of colors to use for color quantization
+     * @param dither    how to replace pixels with palette colors
+     * @return the palette together with the palette index of every pixel
+     */
+    public QuantizedImage quantize(int numColors, DitherMode dither) {
+        PackedColorMap colorMap = generateColorMap(numColors);
+        QuantizedImage quantized = new QuantizedImage(raster.getWidth(), raster.getHeight(), colorMap.getPaletteRGB());
+
+        switch (dither) {
+            case FLOYD_STEINBERG:
+                DitherEngine.floydSteinberg(raster, new PaletteIndex(new SquaredEuclideanMetric(), colorMap.getPalette()),
+                        quantized);
+                break;
+            case ORDERED:
+                DitherEngine.ordered(raster, new PaletteIndex(new SquaredEuclideanMetric(), colorMap.getPalette()),
+                        quantized);
+                break;
+            default:
+                // Replace each pixel with the index of its mapped color in the reduced palette
+                RemapEngine.remap(raster, colorMap, quantized);
+        }
+        return quantized;
+
+    }
+
+    /**
+     * Performs color quantization using the color map generator specified when
+     * this quantizer was constructed.
+     *
+     * @param numColors number of colors to use for color quantization
+     * @return A packed raster with the same dimensions as the original image
+     *         where each pixel holds its color after quantization
+     */
+    public PackedRaster quantizeToRaster(int numColors) {
+        return quantizeToRaster(numColors, new PackedRaster(raster.getWidth(), raster.getHeight()));
+    }
+
+    /**
+     * Performs color quantization into a raster the caller provides, so one
+     * output buffer can be reused across many images of the same size.
+     *
+     * @param numColors number of colors to use for color quantization
+     * @param target    a raster of the same size as the image, overwritten
+     * @return target, holding the color of each pixel after quantization
+     */
+    public PackedRaster quantizeToRaster(int numColors, PackedRaster target) {
+        RemapEngine.remap(raster, generateColorMap(numColors), target);
+        return target;
+    }
+
+    // the palette and the map onto it for this image
+    private PackedColorMap generateColorMap(int numColors) {
         // generate a color palette with the specified number of colors using
         // colorMapGenerator
-        Pixel[] colorPalette = colorMapGenerator.generateColorPalette(pixelArray, numColors);
+        ColorHistogram histogram = getHistogram();
+        Pixel[] colorPalette = colorMapGenerator.generateColorPalette(histogram, numColors);
 
         // Generate a mapping from original colors to palette colors, this is the data
         // structure that holds the reduced colors
-        Map<Pixel, Pixel> colorMap = colorMapGenerator.generateColorMap(pixelArray, colorPalette);
-
-        // create a pixel array with the same dimentions as the og.
-        int height = pixelArray.length;
-        int width = (height > 0) ? pixelArray[0].length : 0;
-        Pixel[][] quantizedArray = new Pixel[height][width];
-
-        // Replace each pixel with its mapped color from the reduced palette
-        for (int i = 0; i < height; i++) {
-            for (int j = 0; j < width; j++) {
+        return colorMapGenerator.generatePackedColorMap(histogram, colorPalette);
+    }
 
-                Pixel ogPixel = pixelArray[i][j];
-                Pixel newPixel = colorMap.get(ogPixel);
-                quantizedArray[i][j] = newPixel;
-            }
+    /**
+     * Returns the color histogram of the image, computing it with a single
+     * pass over the raster the first time it is needed.
+     *
+     * @return the color histogram of the image being quantized
+     */
+    public ColorHistogram getHistogram() {
+        if (histogram == null) {
+            histogram = ColorHistogram.of(raster);
         }
-        return quantizedArray;
-
+        return histogram;
     }
 
     /**
@@ -76,12 +150,21 @@ public class ColorQuantizer implements ColorQuantizer_Inter {
      * @param fileName  File to write resulting image to
      */
     public void quantizeToBMP(String fileName, int numColors) {
+        quantizeToBMP(fileName, numColors, false);
+    }
+
+    /**
+     * Performs color quantization and writes the result as a BMP file. Up to
+     * 256 colors are written as an indexed image of 1, 4 or 8 bits per pixel,
+     * optionally run-length encoded; more colors fall back to 24 bits.
+     *
+     * @param fileName  File to write resulting image to
+     * @param numColors number of colors to use for color quantization
+     * @param compress  whether to run-length encode indexed output
+     */
+    public void quantizeToBMP(String fileName, int numColors, boolean compress) {
         try {
-            // Calls the quantizeTo2DArray method that you've already implemented to perform
-            // the color quantization
-            // and get the resulting 2D array of pixels
-            Pixel[][] newPixelArray = quantizeTo2DArray(numColors);
-            Util.savePixelMatrixToBitmap(fileName, newPixelArray);
+            quantize(numColors).writeBMP(fileName, compress);
         }
 
         catch (Exception e) {
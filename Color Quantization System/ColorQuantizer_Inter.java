@@ -19,6 +19,17 @@ interface ColorQuantizer_Inter {
      */
     public Pixel[][] quantizeTo2DArray(int numColors);
 
+    /**
+     * Performs color quantization using the color map generator specified when
+     * this quantizer was constructed, keeping the result as a palette plus one
+     * palette index per pixel. quantizeTo2DArray and quantizeToBMP are views
+     * of this result.
+     *
+     * @param numColors number of colors to use for color quantization
+     * @return the palette together with the palette index of every pixel
+     */
+    public QuantizedImage quantize(int numColors);
+
     /**
      * Performs color quantization using the color map generator specified when
      * this quantizer was constructed. Rather than returning the pixel array,
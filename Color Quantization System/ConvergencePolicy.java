@@ -0,0 +1,101 @@
+
+
+/**
+ * Decides when the k-means loop in ClusteringMapGenerator stops. The loop
+ * always stops once no centroid moves. It also stops at the first of these
+ * limits that is reached:
+ * <ul>
+ * <li>an iteration cap</li>
+ * <li>every centroid moving no more than maxCentroidShift, in RGB units</li>
+ * <li>inertia (the weighted sum of distances from each color to its centroid)
+ * improving by less than minRelativeImprovement of its previous value</li>
+ * <li>a wall-clock budget</li>
+ * </ul>
+ * Since centroids are truncated to whole RGB values, some images oscillate
+ * without ever settling, and these limits bound the time spent on them.
+ */
+public final class ConvergencePolicy {
+
+    /**
+     * The reason a k-means run stopped.
+     */
+    public enum StopReason {
+        // no centroid moved during the last iteration
+        CONVERGED,
+        // the iteration cap was reached
+        MAX_ITERATIONS,
+        // every centroid moved no more than the allowed shift
+        CENTROID_SHIFT,
+        // inertia stopped improving fast enough
+        INERTIA_IMPROVEMENT,
+        // the wall-clock budget ran out
+        TIME_BUDGET
+    }
+
+    private final int maxIterations;
+    private final double maxCentroidShift;
+    private final double minRelativeImprovement;
+    private final long timeBudgetMillis;
+
+    /**
+     * @param maxIterations          the most iterations to run, positive
+     * @param maxCentroidShift       stop once no centroid moves farther than
+     *                               this Euclidean RGB distance; 0 disables
+     * @param minRelativeImprovement stop once inertia improves by less than
+     *                               this fraction; 0 disables
+     * @param timeBudgetMillis       stop after this many milliseconds; 0
+     *                               disables
+     */
+    public ConvergencePolicy(int maxIterations, double maxCentroidShift, double minRelativeImprovement,
+            long timeBudgetMillis) {
+        if (maxIterations <= 0) {
+            throw new IllegalArgumentException("Iteration cap must be positive");
+        }
+        if (maxCentroidShift < 0 || minRelativeImprovement < 0 || timeBudgetMillis < 0) {
+            throw new IllegalArgumentException("Convergence limits must not be negative");
+        }
+        this.maxIterations = maxIterations;
+        this.maxCentroidShift = maxCentroidShift;
+        this.minRelativeImprovement = minRelativeImprovement;
+        this.timeBudgetMillis = timeBudgetMillis;
+    }
+
+    /**
+     * Returns the policy ClusteringMapGenerator has always used: run until no
+     * centroid moves, for at most 10000 iterations.
+     *
+     * @return the default convergence policy
+     */
+    public static ConvergencePolicy defaultPolicy() {
+        return new ConvergencePolicy(10000, 0, 0, 0);
+    }
+
+    public int getMaxIterations() {
+        return maxIterations;
+    }
+
+    public double getMaxCentroidShift() {
+        return maxCentroidShift;
+    }
+
+    public double getMinRelativeImprovement() {
+        return minRelativeImprovement;
+    }
+
+    public long getTimeBudgetMillis() {
+        return timeBudgetMillis;
+    }
+
+    // inertia costs an extra distance per color each iteration, so it is
+    // only computed when this policy looks at it
+    boolean tracksInertia() {
+        return minRelativeImprovement > 0;
+    }
+
+    @Override
+    public String toString() {
+        return "ConvergencePolicy(maxIterations=" + maxIterations + ", maxCentroidShift=" + maxCentroidShift
+                + ", minRelativeImprovement=" + minRelativeImprovement + ", timeBudgetMillis=" + timeBudgetMillis
+                + ")";
+    }
+}
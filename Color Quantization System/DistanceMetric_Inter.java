@@ -15,4 +15,69 @@ interface DistanceMetric_Inter {
      * @return The distance between the RGB values of p1 and p2
      */
     public double colorDistance(Pixel p1, Pixel p2);
+
+    /**
+     * Computes the distance between two packed 0xRRGGBB colors. This must
+     * agree with colorDistance(Pixel, Pixel); the default implementation
+     * simply unpacks both colors. Implementations should override it to avoid
+     * allocating Pixels in hot loops.
+     *
+     * @param rgb1 the first packed color
+     * @param rgb2 the second packed color
+     * @return The distance between rgb1 and rgb2
+     */
+    public default double colorDistance(int rgb1, int rgb2) {
+        return colorDistance(Pixel.fromRGB(rgb1), Pixel.fromRGB(rgb2));
+    }
+
+    /**
+     * Computes the distance from one packed color to every entry of a
+     * palette, writing the distance to entry n into distances[n]. This must
+     * agree with colorDistance(int, int); the default implementation simply
+     * calls it once per entry. Implementations should override it with a
+     * loop over the channel arrays of the buffer, which saves a call per
+     * entry and lets the JIT vectorize the loop.
+     *
+     * @param rgb       the packed color
+     * @param palette   the palette entries to compare against
+     * @param distances receives palette.size() distances
+     */
+    public default void colorDistances(int rgb, PaletteBuffer palette, double[] distances) {
+        for (int n = 0; n < palette.size(); n++) {
+            distances[n] = colorDistance(rgb, palette.getRGB(n));
+        }
+    }
+
+    /**
+     * Computes the distances from each of colors[from, to) to every entry of
+     * a palette. The distance from colors[p] to entry n goes into
+     * distances[(p - from) * palette.size() + n].
+     *
+     * @param colors    packed colors
+     * @param from      the first color to compare, inclusive
+     * @param to        the last color to compare, exclusive
+     * @param palette   the palette entries to compare against
+     * @param distances receives (to - from) * palette.size() distances
+     */
+    public default void colorDistances(int[] colors, int from, int to, PaletteBuffer palette, double[] distances) {
+        int size = palette.size();
+        for (int p = from; p < to; p++) {
+            int row = (p - from) * size;
+            for (int n = 0; n < size; n++) {
+                distances[row + n] = colorDistance(colors[p], palette.getRGB(n));
+            }
+        }
+    }
+
+    /**
+     * Reports whether this metric is the squared Euclidean distance in RGB
+     * space. The square root of such a metric obeys the triangle inequality,
+     * which lets clustering skip distance computations that cannot change
+     * the result.
+     *
+     * @return true if colorDistance is the squared Euclidean RGB distance
+     */
+    public default boolean isSquaredEuclidean() {
+        return false;
+    }
 }
@@ -0,0 +1,319 @@
+
+
+import java.util.Arrays;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.IntStream;
+
+/**
+ * Dithers a raster onto a palette, trading the banding of plain nearest
+ * color replacement for fine noise. Both modes find colors with a
+ * PaletteIndex and write palette indices into a QuantizedImage.
+ *
+ * Floyd-Steinberg error diffusion is sequential along a row, but a row only
+ * needs the error of the row above up to one pixel to its right. Rows are
+ * therefore handed out round-robin to worker threads, and each row runs at
+ * least LAG pixels behind the row above (a wavefront). Errors are kept in
+ * sixteenths in primitive int buffers and always added up in the same order,
+ * so the result does not depend on the number of threads. The helper
+ * threads come from one shared pool, and at most MAX_HELPERS of them run at
+ * a time across all callers.
+ *
+ * Ordered dithering adds a fixed 8x8 Bayer threshold to every pixel, so
+ * pixels are independent and bands of rows run in parallel.
+ */
+final class DitherEngine {
+    // pixels a row runs behind the one above; at least 2, larger values mean
+    // fewer waits
+    static final int LAG = 64;
+
+    // images smaller than this are dithered on the calling thread
+    static final int PARALLEL_PIXELS = 1 << 16;
+
+    // helper threads running wavefront rows at once, over all callers
+    static final int MAX_HELPERS = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+
+    // every worker of a wavefront has to be running at once, since each
+    // waits on the one before it, so helpers get a thread of their own from
+    // a cached pool and the permits keep the number of them bounded
+    private static final ExecutorService HELPERS = Executors.newCachedThreadPool(task -> {
+        Thread thread = new Thread(task, "dither-helper");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private static final Semaphore HELPER_PERMITS = new Semaphore(MAX_HELPERS);
+
+    // the 8x8 Bayer matrix, thresholds 0 to 63
+    private static final int[] BAYER = {
+        0, 32, 8, 40, 2, 34, 10, 42,
+        48, 16, 56, 24, 50, 18, 58, 26,
+        12, 44, 4, 36, 14, 46, 6, 38,
+        60, 28, 52, 20, 62, 30, 54, 22,
+        3, 35, 11, 43, 1, 33, 9, 41,
+        51, 19, 59, 27, 49, 17, 57, 25,
+        15, 47, 7, 39, 13, 45, 5, 37,
+        63, 31, 55, 23, 61, 29, 53, 21
+    };
+
+    private DitherEngine() {
+
+    }
+
+    // nearest palette entry with per-thread scratch space, so lookups do not
+    // allocate
+    private static final class Lookup {
+        private final PaletteIndex index;
+        private final double[] distances;
+        private final float[] features;
+
+        Lookup(PaletteIndex index, int paletteSize) {
+            this.index = index;
+            this.distances = new double[paletteSize];
+            this.features = index.featureScratch();
+        }
+
+        int nearest(int rgb) {
+            return index.nearest(rgb, distances, features);
+        }
+    }
+
+    /**
+     * Dithers source onto the palette of target with Floyd-Steinberg error
+     * diffusion.
+     *
+     * @param source the image to dither
+     * @param index  an index over the palette of target
+     * @param target an image of the same size as source
+     */
+    static void floydSteinberg(PackedRaster source, PaletteIndex index, QuantizedImage target) {
+        int threads = (source.size() < PARALLEL_PIXELS) ? 1 : Runtime.getRuntime().availableProcessors();
+        floydSteinberg(source, index, target, threads);
+    }
+
+    // with up to a given number of threads; the result is the same for any
+    // number
+    static void floydSteinberg(PackedRaster source, PaletteIndex index, QuantizedImage target, int threads) {
+        checkSize(source, target);
+        int width = source.getWidth();
+        int height = source.getHeight();
+        // the calling thread is one of the workers, and the others are only
+        // started if helper permits are free
+        int wanted = Math.max(0, Math.min(height, threads) - 1);
+        int helpers = 0;
+        while (helpers < wanted && HELPER_PERMITS.tryAcquire()) {
+            helpers++;
+        }
+        try {
+            floydSteinberg(source, index, target, width, height, helpers + 1);
+        } finally {
+            HELPER_PERMITS.release(helpers);
+        }
+    }
+
+    private static void floydSteinberg(PackedRaster source, PaletteIndex index, QuantizedImage target, int width,
+            int height, int workers) {
+
+        // one incoming error row per row in flight, plus the one being
+        // written ahead; three channels per pixel with a pixel of padding
+        // on each side
+        int stride = 3 * (width + 2);
+        int[] errors = new int[(workers + 1) * stride];
+        // pixels finished in each row
+        AtomicIntegerArray progress = new AtomicIntegerArray(height);
+        // the first failure of any worker; the others stop waiting once set
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        if (workers == 1) {
+            diffuseRows(source, index, target, errors, stride, progress, failure, 0, 1, workers + 1);
+            return;
+        }
+        Future<?>[] helpers = new Future<?>[workers - 1];
+        for (int w = 1; w < workers; w++) {
+            int first = w;
+            helpers[w - 1] = HELPERS.submit(() -> diffuseWorker(source, index, target, errors, stride, progress,
+                    failure, first, workers, workers + 1));
+        }
+        diffuseWorker(source, index, target, errors, stride, progress, failure, 0, workers, workers + 1);
+
+        boolean interrupted = false;
+        for (Future<?> helper : helpers) {
+            while (true) {
+                try {
+                    helper.get();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    // diffuseWorker catches everything, so this is unexpected
+                    failure.compareAndSet(null, e.getCause());
+                    break;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        Throwable thrown = failure.get();
+        if (thrown instanceof RuntimeException) {
+            throw (RuntimeException) thrown;
+        }
+        if (thrown instanceof Error) {
+            throw (Error) thrown;
+        }
+        if (thrown != null) {
+            throw new IllegalStateException("Dithering failed", thrown);
+        }
+    }
+
+    // diffuseRows that records its failure instead of throwing it, so the
+    // workers waiting on its rows can give up
+    private static void diffuseWorker(PackedRaster source, PaletteIndex index, QuantizedImage target, int[] errors,
+            int stride, AtomicIntegerArray progress, AtomicReference<Throwable> failure, int first, int step,
+            int errorRows) {
+        try {
+            diffuseRows(source, index, target, errors, stride, progress, failure, first, step, errorRows);
+        } catch (Throwable t) {
+            failure.compareAndSet(null, t);
+        }
+    }
+
+    // rows first, first + step, first + 2 * step, ... of the wavefront
+    private static void diffuseRows(PackedRaster source, PaletteIndex index, QuantizedImage target, int[] errors,
+            int stride, AtomicIntegerArray progress, AtomicReference<Throwable> failure, int first, int step,
+            int errorRows) {
+        int[] in = source.getData();
+        int[] paletteRGB = target.getPaletteRGB();
+        int width = source.getWidth();
+        int height = source.getHeight();
+        Lookup lookup = new Lookup(index, paletteRGB.length);
+
+        for (int y = first; y < height; y += step) {
+            // errors coming into this row, and the ones it passes down
+            int current = (y % errorRows) * stride;
+            int below = ((y + 1) % errorRows) * stride;
+            Arrays.fill(errors, below, below + stride, 0);
+
+            // error carried to the right neighbour, in sixteenths
+            int carryR = 0, carryG = 0, carryB = 0;
+            for (int x = 0; x < width; x++) {
+                if (y > 0 && x % LAG == 0) {
+                    // the row above must have finished the pixel above and
+                    // to the right of every pixel in this stretch
+                    awaitProgress(progress, failure, y - 1, Math.min(width, x + LAG + 1));
+                }
+                int rgb = in[y * width + x];
+                int e = current + 3 * (x + 1);
+                int r = clamp(((rgb >> 16) & 0xFF) + (errors[e] + carryR) / 16);
+                int g = clamp(((rgb >> 8) & 0xFF) + (errors[e + 1] + carryG) / 16);
+                int b = clamp((rgb & 0xFF) + (errors[e + 2] + carryB) / 16);
+
+                int nearest = lookup.nearest((r << 16) | (g << 8) | b);
+                target.setIndex(x, y, nearest);
+                int chosen = paletteRGB[nearest];
+                int errR = r - ((chosen >> 16) & 0xFF);
+                int errG = g - ((chosen >> 8) & 0xFF);
+                int errB = b - (chosen & 0xFF);
+
+                // 7/16 right, 3/16 below left, 5/16 below, 1/16 below right
+                carryR = 7 * errR;
+                carryG = 7 * errG;
+                carryB = 7 * errB;
+                int d = below + 3 * x;
+                errors[d] += 3 * errR;
+                errors[d + 1] += 3 * errG;
+                errors[d + 2] += 3 * errB;
+                errors[d + 3] += 5 * errR;
+                errors[d + 4] += 5 * errG;
+                errors[d + 5] += 5 * errB;
+                errors[d + 6] += errR;
+                errors[d + 7] += errG;
+                errors[d + 8] += errB;
+
+                if ((x + 1) % LAG == 0) {
+                    progress.set(y, x + 1);
+                }
+            }
+            progress.set(y, width);
+        }
+    }
+
+    // throws CancellationException if another worker failed, since the row
+    // may then never get there
+    private static void awaitProgress(AtomicIntegerArray progress, AtomicReference<Throwable> failure, int row,
+            int pixels) {
+        int spins = 0;
+        while (progress.get(row) < pixels) {
+            if (failure.get() != null) {
+                throw new CancellationException("Another dither worker failed");
+            }
+            if (++spins < 100) {
+                Thread.onSpinWait();
+            } else {
+                Thread.yield();
+            }
+        }
+    }
+
+    /**
+     * Dithers source onto the palette of target with an 8x8 Bayer matrix.
+     * The threshold spread is about the spacing of the palette along each
+     * channel, assuming its colors are evenly spread. Only the entries index
+     * actually holds are counted, not empty palette slots.
+     *
+     * @param source the image to dither
+     * @param index  an index over the palette of target
+     * @param target an image of the same size as source
+     */
+    static void ordered(PackedRaster source, PaletteIndex index, QuantizedImage target) {
+        checkSize(source, target);
+        int[] in = source.getData();
+        int[] paletteRGB = target.getPaletteRGB();
+        int width = Math.max(1, source.getWidth());
+        int height = source.getHeight();
+
+        int spread = (int) Math.round(255 / Math.cbrt(Math.max(1, index.size())));
+        int[] offsets = new int[BAYER.length];
+        for (int i = 0; i < BAYER.length; i++) {
+            // centred on zero
+            offsets[i] = (2 * BAYER[i] + 1 - 64) * spread / 128;
+        }
+
+        int rowsPerBand = Math.max(1, RemapEngine.TILE_PIXELS / width);
+        int bandCount = (height + rowsPerBand - 1) / rowsPerBand;
+        IntStream bands = IntStream.range(0, bandCount);
+        if (bandCount > 1) {
+            bands = bands.parallel();
+        }
+        bands.forEach(band -> {
+            Lookup lookup = new Lookup(index, paletteRGB.length);
+            int end = Math.min(height, (band + 1) * rowsPerBand);
+            for (int y = band * rowsPerBand; y < end; y++) {
+                for (int x = 0; x < source.getWidth(); x++) {
+                    int rgb = in[y * width + x];
+                    int offset = offsets[((y & 7) << 3) | (x & 7)];
+                    int r = clamp(((rgb >> 16) & 0xFF) + offset);
+                    int g = clamp(((rgb >> 8) & 0xFF) + offset);
+                    int b = clamp((rgb & 0xFF) + offset);
+                    target.setIndex(x, y, lookup.nearest((r << 16) | (g << 8) | b));
+                }
+            }
+        });
+    }
+
+    private static int clamp(int channel) {
+        return (channel < 0) ? 0 : (channel > 255) ? 255 : channel;
+    }
+
+    private static void checkSize(PackedRaster source, QuantizedImage target) {
+        if (source.getWidth() != target.getWidth() || source.getHeight() != target.getHeight()) {
+            throw new IllegalArgumentException("Target must be the same size as the source");
+        }
+    }
+}
@@ -0,0 +1,11 @@
+/**
+ * How ColorQuantizer replaces each pixel with a palette color.
+ */
+public enum DitherMode {
+    // every pixel becomes the color it is mapped to by the color map
+    NONE,
+    // Floyd-Steinberg error diffusion onto the nearest palette colors
+    FLOYD_STEINBERG,
+    // 8x8 Bayer ordered dithering onto the nearest palette colors
+    ORDERED
+}
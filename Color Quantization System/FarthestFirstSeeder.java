@@ -0,0 +1,158 @@
+
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Farthest-first traversal over the distinct colors of an image. The first
+ * centroid is the top-left pixel of the image, and each following centroid is
+ * the color farthest from its closest centroid so far.
+ *
+ * Every color keeps its distance to the closest centroid chosen so far, and
+ * only the newest centroid is compared against it. Seeding therefore takes
+ * O(n * k) distance computations rather than O(n * k^2). When the metric has
+ * a projection, every color is projected once up front and the newest
+ * centroid is compared against the features in one batch call per range.
+ *
+ * Ties in distance go to the higher RGB value, computed the old way with
+ * green masked out. Colors that still tie (they differ only in green) used to
+ * be settled by HashSet iteration order; now the lowest packed color wins,
+ * since the histogram's colors are sorted. Palettes can differ from the
+ * original implementation in that case only.
+ */
+final class FarthestFirstSeeder {
+    private final DistanceMetric_Inter metric;
+    private final ForkJoinPool pool;
+    private final int[] colors;
+    private final double[] minDistance;
+
+    // projected colors and the projected newest centroid, or null when the
+    // metric has no projection; distances is scratch for the batch calls
+    private final ProjectedMetric_Inter projected;
+    private final float[] features;
+    private final float[] newestFeatures;
+    private final double[] distances;
+
+    /**
+     * @param metric    the distance metric between colors
+     * @param histogram the distinct colors to choose centroids from
+     * @param pool      the pool to scan the colors on, or null to scan on the
+     *                  calling thread
+     */
+    FarthestFirstSeeder(DistanceMetric_Inter metric, ColorHistogram histogram, ForkJoinPool pool) {
+        this.metric = metric;
+        this.pool = pool;
+        this.colors = histogram.getColors();
+        this.minDistance = new double[colors.length];
+        this.projected = (metric instanceof ProjectedMetric_Inter) ? (ProjectedMetric_Inter) metric : null;
+        if (projected != null) {
+            features = new float[colors.length * projected.featureDimension()];
+            newestFeatures = new float[projected.featureDimension()];
+            distances = new double[colors.length];
+        } else {
+            features = null;
+            newestFeatures = null;
+            distances = null;
+        }
+    }
+
+    /**
+     * Chooses up to numColors centroids. When the image has fewer distinct
+     * colors than that, the remaining entries are null.
+     *
+     * @param firstColor the packed color of the top-left pixel
+     * @param numColors  the number of desired colors in the palette
+     * @return a Pixel array containing numColors elements
+     */
+    Pixel[] seed(int firstColor, int numColors) {
+        Pixel[] palette = new Pixel[numColors];
+        if (colors.length == 0) {
+            return palette;
+        }
+
+        palette[0] = Pixel.fromRGB(firstColor);
+        Arrays.fill(minDistance, Double.MAX_VALUE);
+        int newest = firstColor;
+        if (features != null) {
+            projected.project(colors, 0, colors.length, features, 0);
+        }
+
+        // Select remaining centroids using farthest-first traversal
+        for (int k = 1; k < numColors && k < colors.length; k++) {
+            if (features != null) {
+                projected.project(newest, newestFeatures, 0);
+            }
+            int farthest = (pool == null || colors.length <= KMeansClusterer.CHUNK_SIZE)
+                    ? updateAndFindFarthest(0, colors.length, newest)
+                    : pool.invoke(new FarthestTask(0, colors.length, newest));
+            newest = colors[farthest];
+            palette[k] = Pixel.fromRGB(newest);
+        }
+        return palette;
+    }
+
+    // folds the newest centroid into the running distances of colors
+    // [from, to) and returns the position of the farthest one among them
+    private int updateAndFindFarthest(int from, int to, int newest) {
+        if (features != null) {
+            projected.featureDistances(newestFeatures, 0, features, from, to, distances);
+        }
+        int farthest = -1;
+        for (int p = from; p < to; p++) {
+            double distance = (features != null) ? distances[p] : metric.colorDistance(colors[p], newest);
+            if (distance < minDistance[p]) {
+                minDistance[p] = distance;
+            }
+            if (farthest < 0 || isFarther(p, farthest)) {
+                farthest = p;
+            }
+        }
+        return farthest;
+    }
+
+    // If this color is farther from its closest centroid than the other, or is
+    // the same distance but has a higher RGB value, it wins. Earlier (lower)
+    // colors win full ties, since the caller only replaces on a strict win.
+    private boolean isFarther(int p, int other) {
+        if (minDistance[p] != minDistance[other]) {
+            return minDistance[p] > minDistance[other];
+        }
+        return tieBreakValue(colors[p]) > tieBreakValue(colors[other]);
+    }
+
+    // The RGB value used to break ties. The original rule masks green out, so
+    // it compares red and then blue; it is kept as is.
+    static int tieBreakValue(int rgb) {
+        return rgb & 0xFF00FF;
+    }
+
+    // splits the colors in half until a range fits in one chunk; the left
+    // result wins ties so the outcome matches a serial scan
+    private final class FarthestTask extends RecursiveTask<Integer> {
+        private static final long serialVersionUID = 1L;
+
+        private final int from;
+        private final int to;
+        private final int newest;
+
+        FarthestTask(int from, int to, int newest) {
+            this.from = from;
+            this.to = to;
+            this.newest = newest;
+        }
+
+        @Override
+        protected Integer compute() {
+            if (to - from <= KMeansClusterer.CHUNK_SIZE) {
+                return updateAndFindFarthest(from, to, newest);
+            }
+            int mid = (from + to) >>> 1;
+            FarthestTask right = new FarthestTask(mid, to, newest);
+            right.fork();
+            int leftFarthest = new FarthestTask(from, mid, newest).compute();
+            int rightFarthest = right.join();
+            return isFarther(rightFarthest, leftFarthest) ? rightFarthest : leftFarthest;
+        }
+    }
+}
@@ -0,0 +1,273 @@
+
+
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * k-means for CircularHueMetric. Under that metric a color is nothing but its
+ * hue, and hues are whole degrees, so the distinct colors collapse into a
+ * 360-bin circular histogram. Clustering runs over those bins rather than
+ * over every distinct color, which takes microseconds no matter how large the
+ * image is. Each final hue cluster is then given the mean RGB color of the
+ * colors in it, just like ClusteringMapGenerator's centroids.
+ */
+public class HueClusteringMapGenerator implements ColorMapGenerator_Inter {
+    private static final int BINS = 360;
+    private static final int MAX_ITERATIONS = 1000;
+
+    // whether each color counts as many times as it occurs in the image
+    private boolean weighted;
+
+    public HueClusteringMapGenerator() {
+
+        this(true);
+
+    }
+
+    // when weighted is true (the default), each hue bin weighs as much as the
+    // number of pixels in it; otherwise it weighs the number of distinct
+    // colors in it
+    public HueClusteringMapGenerator(boolean weighted) {
+
+        this.weighted = weighted;
+
+    }
+
+    /**
+     * Produces an initial palette. For bucketing implementations, the initial
+     * palette will be the centers of the evenly-divided buckets. For clustering
+     * implementations, the initial palette will be the initial centroids. When
+     * needed, a distance metric should be specified when the color map
+     * generator is constructed.
+     *
+     * @param pixelArray the 2D Pixel array that represents a bitmap image
+     * @param numColors  the number of desired colors in the palette
+     * @return a Pixel array containing numColors elements
+     */
+    public Pixel[] generateColorPalette(Pixel[][] pixelArray, int numColors) {
+        return generateColorPalette(ColorHistogram.of(PackedRaster.fromPixelMatrix(pixelArray)), numColors);
+    }
+
+    // Farthest-first over the hue bins, starting from the top-left pixel. Each
+    // later seed is the most common color of the bin farthest from every
+    // seed so far. When the image covers fewer bins than numColors, the
+    // palette ends with null entries.
+    @Override
+    public Pixel[] generateColorPalette(ColorHistogram histogram, int numColors) {
+        if (numColors <= 0) {
+            throw new IllegalArgumentException("Number of colors must be positive");
+        }
+        Pixel[] palette = new Pixel[numColors];
+        if (histogram.isEmpty()) {
+            return palette;
+        }
+        HueBins bins = new HueBins(histogram, weighted);
+
+        int first = histogram.getFirstColor();
+        palette[0] = Pixel.fromRGB(first);
+        int[] minDistance = new int[BINS];
+        Arrays.fill(minDistance, Integer.MAX_VALUE);
+        int newest = binOf(HueTable.hueOf(first));
+
+        for (int k = 1; k < numColors; k++) {
+            int farthest = -1;
+            for (int b = 0; b < BINS; b++) {
+                if (bins.weight[b] == 0) continue;
+
+                minDistance[b] = Math.min(minDistance[b], binDistance(b, newest));
+                if (farthest < 0 || minDistance[b] > minDistance[farthest]) {
+                    farthest = b;
+                }
+            }
+            if (minDistance[farthest] == 0) {
+                // every occupied bin already has a seed
+                break;
+            }
+            newest = farthest;
+            palette[k] = Pixel.fromRGB(bins.representative[farthest]);
+        }
+        return palette;
+    }
+
+    /**
+     * Computes the reduced color map. For bucketing implementations, this will
+     * map each color to the center of its bucket. For clustering
+     * implementations, this will map each color to its final centroid. When
+     * needed, a distance metric should be specified when the color map
+     * generator is constructed.
+     *
+     * @param pixelArray          the pixels array that represents a bitmap image
+     * @param initialColorPalette an initial color palette, such as those
+     *                            generated by generateColorPalette, represented as
+     *                            an array of Pixels
+     * @return A Map that maps each distinct color in pixelArray to a final
+     *         color
+     */
+    public Map<Pixel, Pixel> generateColorMap(Pixel[][] pixelArray, Pixel[] initialColorPalette) {
+        ColorHistogram histogram = ColorHistogram.of(PackedRaster.fromPixelMatrix(pixelArray));
+        return generatePackedColorMap(histogram, initialColorPalette).toPixelMap();
+    }
+
+    @Override
+    public PackedColorMap generatePackedColorMap(ColorHistogram histogram, Pixel[] initialColorPalette) {
+        int numColors = initialColorPalette.length;
+        double[] centroids = new double[numColors];
+        boolean[] present = new boolean[numColors];
+        for (int i = 0; i < numColors; i++) {
+            if (initialColorPalette[i] != null) {
+                centroids[i] = binOf(initialColorPalette[i].getHue());
+                present[i] = true;
+            }
+        }
+        if (histogram.isEmpty()) {
+            return new PackedColorMap(new int[0], new int[0], initialColorPalette);
+        }
+        if (!anyPresent(present)) {
+            // nothing to start from, so seed the centroids here instead
+            if (numColors == 0) {
+                throw new IllegalArgumentException("The initial palette must have at least one entry");
+            }
+            return generatePackedColorMap(histogram, generateColorPalette(histogram, numColors));
+        }
+        HueBins bins = new HueBins(histogram, weighted);
+
+        // circular k-means over the bins
+        int[] clusterOf = new int[BINS];
+        Arrays.fill(clusterOf, -1);
+        double[] shiftSum = new double[numColors];
+        long[] clusterWeight = new long[numColors];
+        for (int iteration = 0; iteration < MAX_ITERATIONS; iteration++) {
+            boolean changed = false;
+            for (int b = 0; b < BINS; b++) {
+                if (bins.weight[b] == 0) continue;
+
+                int closest = closestCentroid(b, centroids, present);
+                if (closest != clusterOf[b]) {
+                    clusterOf[b] = closest;
+                    changed = true;
+                }
+            }
+            if (!changed) {
+                break;
+            }
+
+            // each centroid moves by the weighted mean of the signed offsets
+            // of its bins, which is the mean taken the short way round
+            Arrays.fill(shiftSum, 0);
+            Arrays.fill(clusterWeight, 0);
+            for (int b = 0; b < BINS; b++) {
+                if (bins.weight[b] == 0) continue;
+
+                int cluster = clusterOf[b];
+                shiftSum[cluster] += bins.weight[b] * signedOffset(b, centroids[cluster]);
+                clusterWeight[cluster] += bins.weight[b];
+            }
+            for (int i = 0; i < numColors; i++) {
+                if (clusterWeight[i] == 0) continue;
+
+                double moved = centroids[i] + shiftSum[i] / clusterWeight[i];
+                centroids[i] = ((moved % BINS) + BINS) % BINS;
+            }
+        }
+
+        // the final palette is the mean RGB color of each hue cluster
+        int[] colors = histogram.getColors();
+        int[] counts = histogram.getCounts();
+        long[] sumR = new long[numColors];
+        long[] sumG = new long[numColors];
+        long[] sumB = new long[numColors];
+        long[] total = new long[numColors];
+        int[] indices = new int[colors.length];
+        for (int p = 0; p < colors.length; p++) {
+            int rgb = colors[p];
+            int cluster = clusterOf[bins.binOfColor[p]];
+            long w = weighted ? counts[p] : 1;
+            indices[p] = cluster;
+            sumR[cluster] += w * ((rgb >> 16) & 0xFF);
+            sumG[cluster] += w * ((rgb >> 8) & 0xFF);
+            sumB[cluster] += w * (rgb & 0xFF);
+            total[cluster] += w;
+        }
+        Pixel[] palette = initialColorPalette.clone();
+        for (int i = 0; i < numColors; i++) {
+            if (total[i] > 0) {
+                palette[i] = new Pixel((int) (sumR[i] / total[i]), (int) (sumG[i] / total[i]),
+                        (int) (sumB[i] / total[i]));
+            }
+        }
+        return new PackedColorMap(colors, indices, palette);
+    }
+
+    private static boolean anyPresent(boolean[] present) {
+        for (boolean p : present) {
+            if (p) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // closest present centroid to bin b, lowest index on ties
+    private static int closestCentroid(int b, double[] centroids, boolean[] present) {
+        double minDistance = Double.MAX_VALUE;
+        int closest = -1;
+        for (int i = 0; i < centroids.length; i++) {
+            if (!present[i]) continue;
+
+            double distance = Math.abs(b - centroids[i]);
+            distance = Math.min(distance, BINS - distance);
+            if (distance < minDistance) {
+                minDistance = distance;
+                closest = i;
+            }
+        }
+        return closest;
+    }
+
+    // offset from centroid to bin b the short way round, in (-180, 180]
+    private static double signedOffset(int b, double centroid) {
+        double offset = b - centroid;
+        if (offset > BINS / 2) offset -= BINS;
+        if (offset <= -BINS / 2) offset += BINS;
+        return offset;
+    }
+
+    private static int binDistance(int a, int b) {
+        int distance = Math.abs(a - b);
+        return Math.min(distance, BINS - distance);
+    }
+
+    // a rounded hue of 360 is the same point of the circle as 0
+    private static int binOf(int hue) {
+        return hue % BINS;
+    }
+
+    // the circular hue histogram of an image
+    private static final class HueBins {
+        // pixels (or distinct colors) per bin
+        final long[] weight = new long[BINS];
+        // most common color in each bin
+        final int[] representative = new int[BINS];
+        // bin of each histogram color
+        final int[] binOfColor;
+
+        HueBins(ColorHistogram histogram, boolean weighted) {
+            int[] colors = histogram.getColors();
+            int[] counts = histogram.getCounts();
+            float[] hues = new float[colors.length];
+            HueTable.project(colors, 0, colors.length, hues, 0);
+
+            binOfColor = new int[colors.length];
+            int[] bestCount = new int[BINS];
+            for (int p = 0; p < colors.length; p++) {
+                int b = binOf((int) hues[p]);
+                binOfColor[p] = b;
+                weight[b] += weighted ? counts[p] : 1;
+                if (counts[p] > bestCount[b]) {
+                    bestCount[b] = counts[p];
+                    representative[b] = colors[p];
+                }
+            }
+        }
+    }
+}
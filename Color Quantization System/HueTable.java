@@ -0,0 +1,62 @@
+
+
+import java.util.stream.IntStream;
+
+/**
+ * The hue of every one of the 2^24 packed colors, as computed by
+ * Pixel.hueOf. The table takes 32 MB and is only built the first time a large
+ * batch of colors is projected; after that it is shared by every metric and
+ * quantizer in the process. Until then hues are computed directly.
+ */
+final class HueTable {
+    // projecting at least this many colors at once builds the table
+    static final int BUILD_THRESHOLD = 1 << 16;
+
+    private static volatile short[] table;
+
+    private HueTable() {
+
+    }
+
+    // the hue of rgb, from the table when it has been built
+    static int hueOf(int rgb) {
+        short[] hues = table;
+        return (hues != null) ? hues[rgb] : Pixel.hueOf(rgb);
+    }
+
+    // writes the hues of colors[from, to) to features[offset, ...)
+    static void project(int[] colors, int from, int to, float[] features, int offset) {
+        short[] hues = table;
+        if (hues == null && to - from >= BUILD_THRESHOLD) {
+            hues = table();
+        }
+        for (int p = from; p < to; p++) {
+            features[offset + p - from] = (hues != null) ? hues[colors[p]] : Pixel.hueOf(colors[p]);
+        }
+    }
+
+    static boolean isBuilt() {
+        return table != null;
+    }
+
+    private static short[] table() {
+        short[] hues = table;
+        if (hues != null) {
+            return hues;
+        }
+        synchronized (HueTable.class) {
+            if (table == null) {
+                short[] built = new short[1 << 24];
+                // one red value per task
+                IntStream.range(0, 256).parallel().forEach(red -> {
+                    for (int rest = 0; rest < (1 << 16); rest++) {
+                        int rgb = (red << 16) | rest;
+                        built[rgb] = (short) Pixel.hueOf(rgb);
+                    }
+                });
+                table = built;
+            }
+            return table;
+        }
+    }
+}
@@ -0,0 +1,455 @@
+
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Lloyd's k-means over the distinct colors of an image. Colors and centroids
+ * are packed 0xRRGGBB ints and the per-cluster sums live in primitive arrays
+ * that are reused by every iteration, so the loop itself does not allocate.
+ *
+ * When weighted, every color counts as many times as it occurs in the image,
+ * so centroids follow the actual pixel mass. Otherwise every distinct color
+ * counts once, as in the original lecture version of the algorithm.
+ *
+ * Given a ForkJoinPool, the assignment step splits the colors into fixed
+ * chunks that are processed in parallel, each with its own partial sums. The
+ * partial sums are exact integers merged in chunk order, so the result is
+ * identical to a serial run.
+ *
+ * For squared Euclidean metrics the assignment step keeps Hamerly's bounds:
+ * an upper bound on each color's distance to its centroid, a lower bound on
+ * its distance to every other centroid, and half the gap between each
+ * centroid and its nearest neighbour. Colors whose bounds prove that their
+ * centroid cannot change skip the distance computations entirely. Only
+ * strictly separated bounds skip a color, so ties are still settled by a
+ * full scan and the result matches plain Lloyd's exactly.
+ */
+final class KMeansClusterer {
+    // colors per parallel work unit
+    static final int CHUNK_SIZE = 4096;
+
+    private final DistanceMetric_Inter metric;
+    private final ForkJoinPool pool;
+    private final int[] colors;
+    private final int[] weights;
+
+    private final int numColors;
+    private final int[] centroids;
+    private final boolean[] present;
+
+    // centroids with the same color share one cluster; owner[i] is the index
+    // whose sums centroid i uses
+    private final int[] owner;
+
+    private final ClusterSums sums;
+
+    // per-chunk partial sums for parallel runs, allocated once
+    private final ClusterSums[] chunkSums;
+
+    // scratch for batch distance calls: one row per chunk for parallel runs,
+    // and one for the serial path and the bound updates
+    private final double[][] chunkDistances;
+    private final double[] distances;
+
+    private final int[] assignment;
+    private int iterations;
+    private ConvergencePolicy.StopReason stopReason;
+
+    // nearest-centroid lookups for colors that are not using bounds
+    private final PaletteIndex index;
+    private boolean useBounds;
+
+    // every color projected once, when the index compares features; null
+    // otherwise
+    private final float[] features;
+
+    // Hamerly bounds, in Euclidean (not squared) distance; null when the
+    // metric does not allow them
+    private final double[] upper;
+    private final double[] lower;
+    private final double[] halfGap;
+    private final double[] shift;
+    private final int[] previous;
+    private boolean boundsValid;
+
+    // the present centroids, for batch distance calls in full scans
+    private final PaletteBuffer centroidBuffer;
+
+    // absorbs rounding in the bound updates so skipping stays conservative
+    private static final double SLACK = 1e-9;
+
+    /**
+     * @param metric         the distance metric used to assign colors
+     * @param histogram      the distinct colors to cluster
+     * @param weighted       whether colors are weighted by their pixel counts
+     * @param initialPalette the starting centroids; null entries are ignored
+     * @param pool           the pool to run the assignment step on, or null to
+     *                       run it on the calling thread
+     */
+    KMeansClusterer(DistanceMetric_Inter metric, ColorHistogram histogram, boolean weighted, Pixel[] initialPalette,
+            ForkJoinPool pool) {
+        this.metric = metric;
+        this.pool = pool;
+        this.colors = histogram.getColors();
+        this.weights = weighted ? histogram.getCounts() : null;
+
+        numColors = initialPalette.length;
+        centroids = new int[numColors];
+        present = new boolean[numColors];
+        for (int i = 0; i < numColors; i++) {
+            if (initialPalette[i] != null) {
+                centroids[i] = initialPalette[i].getRGB();
+                present[i] = true;
+            }
+        }
+
+        index = new PaletteIndex(metric, initialPalette);
+        if (index.usesFeatures()) {
+            features = new float[colors.length * index.featureDimension()];
+            index.project(colors, features);
+        } else {
+            features = null;
+        }
+        owner = new int[numColors];
+        sums = new ClusterSums(numColors);
+        assignment = new int[colors.length];
+
+        if (metric.isSquaredEuclidean()) {
+            upper = new double[colors.length];
+            lower = new double[colors.length];
+            halfGap = new double[numColors];
+            shift = new double[numColors];
+            previous = new int[numColors];
+            centroidBuffer = new PaletteBuffer(initialPalette);
+        } else {
+            upper = null;
+            lower = null;
+            halfGap = null;
+            shift = null;
+            previous = null;
+            centroidBuffer = null;
+        }
+
+        distances = new double[numColors];
+        int numChunks = (colors.length + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        if (pool != null && numChunks > 1) {
+            chunkSums = new ClusterSums[numChunks];
+            chunkDistances = new double[numChunks][numColors];
+            for (int c = 0; c < numChunks; c++) {
+                chunkSums[c] = new ClusterSums(numColors);
+            }
+        } else {
+            chunkSums = null;
+            chunkDistances = null;
+        }
+    }
+
+    /**
+     * Runs Lloyd's algorithm until the policy says to stop, then maps every
+     * color to its closest final centroid.
+     *
+     * @param policy when to stop iterating
+     * @return the color map to the final centroids
+     */
+    PackedColorMap run(ConvergencePolicy policy) {
+        long deadline = System.nanoTime() + policy.getTimeBudgetMillis() * 1_000_000L;
+        double previousInertia = Double.NaN;
+        boolean assignmentCurrent = false;
+        iterations = 0;
+
+        boundsValid = false;
+        useBounds = (upper != null);
+
+        while (true) {
+            if (iterations >= policy.getMaxIterations()) {
+                stopReason = ConvergencePolicy.StopReason.MAX_ITERATIONS;
+                break;
+            }
+            assign();
+            iterations++;
+
+            if (policy.tracksInertia()) {
+                double inertia = inertia();
+                if (previousInertia - inertia < policy.getMinRelativeImprovement() * previousInertia) {
+                    stopReason = ConvergencePolicy.StopReason.INERTIA_IMPROVEMENT;
+                    assignmentCurrent = true;
+                    break;
+                }
+                previousInertia = inertia;
+            }
+
+            double maxShift = updateCentroids();
+            if (maxShift == 0) {
+                stopReason = ConvergencePolicy.StopReason.CONVERGED;
+                assignmentCurrent = true;
+                break;
+            }
+            if (useBounds) {
+                moveBounds();
+            } else {
+                index.rebuild(centroids, present);
+            }
+
+            if (maxShift <= policy.getMaxCentroidShift()) {
+                stopReason = ConvergencePolicy.StopReason.CENTROID_SHIFT;
+                break;
+            }
+            if (policy.getTimeBudgetMillis() > 0 && System.nanoTime() - deadline >= 0) {
+                stopReason = ConvergencePolicy.StopReason.TIME_BUDGET;
+                break;
+            }
+        }
+
+        // the last assignment is only stale if a centroid moved after it; no
+        // more iterations follow, so plain nearest lookups beat the bounds
+        if (!assignmentCurrent) {
+            useBounds = false;
+            index.rebuild(centroids, present);
+            assign();
+        }
+        return new PackedColorMap(colors, assignment, finalPalette());
+    }
+
+    // number of assignment rounds the last call to run performed
+    int getIterations() {
+        return iterations;
+    }
+
+    // why the last call to run stopped iterating
+    ConvergencePolicy.StopReason getStopReason() {
+        return stopReason;
+    }
+
+    // weighted sum of distances from each color to its assigned centroid
+    private double inertia() {
+        double total = 0;
+        for (int p = 0; p < colors.length; p++) {
+            long w = (weights == null) ? 1 : weights[p];
+            total += w * metric.colorDistance(colors[p], centroids[assignment[p]]);
+        }
+        return total;
+    }
+
+    // assigns every color to its closest centroid and accumulates the sums
+    private void assign() {
+        findOwners();
+        if (chunkSums == null) {
+            sums.clear();
+            assignRange(0, colors.length, sums, distances);
+            boundsValid = useBounds;
+            return;
+        }
+
+        pool.invoke(new AssignTask(0, chunkSums.length));
+        sums.clear();
+        for (ClusterSums partial : chunkSums) {
+            sums.add(partial);
+        }
+        boundsValid = useBounds;
+    }
+
+    // distances is scratch of numColors entries that no other range is using
+    private void assignRange(int from, int to, ClusterSums target, double[] distances) {
+        for (int p = from; p < to; p++) {
+            int rgb = colors[p];
+            int closest;
+            if (useBounds) {
+                closest = closestCentroidBounded(p, rgb, distances);
+            } else if (features != null) {
+                closest = index.nearest(features, p * index.featureDimension(), distances);
+            } else {
+                closest = index.nearest(rgb, distances, null);
+            }
+            assignment[p] = closest;
+
+            int cluster = owner[closest];
+            long w = (weights == null) ? 1 : weights[p];
+            target.sumR[cluster] += w * ((rgb >> 16) & 0xFF);
+            target.sumG[cluster] += w * ((rgb >> 8) & 0xFF);
+            target.sumB[cluster] += w * (rgb & 0xFF);
+            target.weight[cluster] += w;
+        }
+    }
+
+    // same result as a linear nearest-centroid scan, but skips the scan when
+    // the bounds of color p show its previous centroid is still strictly the
+    // closest
+    private int closestCentroidBounded(int p, int rgb, double[] distances) {
+        if (boundsValid) {
+            int current = assignment[p];
+            double bound = Math.max(halfGap[current], lower[p]);
+            if (upper[p] + SLACK < bound) {
+                return current;
+            }
+            upper[p] = Math.sqrt(metric.colorDistance(rgb, centroids[current]));
+            if (upper[p] + SLACK < bound) {
+                return current;
+            }
+        }
+
+        metric.colorDistances(rgb, centroidBuffer, distances);
+        double minDistance = Double.MAX_VALUE;
+        double secondDistance = Double.MAX_VALUE;
+        int closest = -1;
+        for (int n = 0, size = centroidBuffer.size(); n < size; n++) {
+            double distance = distances[n];
+            if (distance < minDistance) {
+                secondDistance = minDistance;
+                minDistance = distance;
+                closest = n;
+            } else if (distance < secondDistance) {
+                secondDistance = distance;
+            }
+        }
+        upper[p] = Math.sqrt(minDistance);
+        lower[p] = Math.sqrt(secondDistance);
+        return centroidBuffer.paletteIndex(closest);
+    }
+
+    // loosens the bounds by how far the centroids just moved
+    private void moveBounds() {
+        centroidBuffer.set(centroids, present);
+        double maxShift = 0;
+        double secondShift = 0;
+        int maxIndex = -1;
+        for (int i = 0; i < numColors; i++) {
+            shift[i] = 0;
+            if (!present[i]) continue;
+
+            shift[i] = Math.sqrt(metric.colorDistance(previous[i], centroids[i]));
+            if (shift[i] > maxShift) {
+                secondShift = maxShift;
+                maxShift = shift[i];
+                maxIndex = i;
+            } else if (shift[i] > secondShift) {
+                secondShift = shift[i];
+            }
+        }
+
+        for (int p = 0; p < colors.length; p++) {
+            int current = assignment[p];
+            upper[p] += shift[current];
+            lower[p] -= (current == maxIndex) ? secondShift : maxShift;
+        }
+
+        for (int i = 0; i < numColors; i++) {
+            if (!present[i]) continue;
+
+            metric.colorDistances(centroids[i], centroidBuffer, distances);
+            double nearest = Double.MAX_VALUE;
+            for (int n = 0, size = centroidBuffer.size(); n < size; n++) {
+                if (centroidBuffer.paletteIndex(n) == i) continue;
+                nearest = Math.min(nearest, distances[n]);
+            }
+            halfGap[i] = Math.sqrt(nearest) / 2;
+        }
+    }
+
+    private void findOwners() {
+        for (int i = 0; i < numColors; i++) {
+            owner[i] = i;
+            for (int j = numColors - 1; j > i; j--) {
+                if (present[j] && centroids[j] == centroids[i]) {
+                    owner[i] = j;
+                    break;
+                }
+            }
+        }
+    }
+
+    // moves every centroid to the mean of its cluster and returns the largest
+    // Euclidean RGB distance any of them moved, 0 if none did
+    private double updateCentroids() {
+        if (previous != null) {
+            System.arraycopy(centroids, 0, previous, 0, numColors);
+        }
+        double maxShift = 0;
+        for (int i = 0; i < numColors; i++) {
+            int cluster = owner[i];
+            if (!present[i] || sums.weight[cluster] == 0) continue;
+
+            int avgR = (int) (sums.sumR[cluster] / sums.weight[cluster]);
+            int avgG = (int) (sums.sumG[cluster] / sums.weight[cluster]);
+            int avgB = (int) (sums.sumB[cluster] / sums.weight[cluster]);
+            int newCentroid = (avgR << 16) | (avgG << 8) | avgB;
+
+            if (newCentroid != centroids[i]) {
+                int dr = avgR - ((centroids[i] >> 16) & 0xFF);
+                int dg = avgG - ((centroids[i] >> 8) & 0xFF);
+                int db = avgB - (centroids[i] & 0xFF);
+                maxShift = Math.max(maxShift, Math.sqrt(dr * dr + dg * dg + db * db));
+                centroids[i] = newCentroid;
+            }
+        }
+        return maxShift;
+    }
+
+    private Pixel[] finalPalette() {
+        Pixel[] palette = new Pixel[numColors];
+        for (int i = 0; i < numColors; i++) {
+            if (present[i]) {
+                palette[i] = Pixel.fromRGB(centroids[i]);
+            }
+        }
+        return palette;
+    }
+
+    // splits a range of chunks in half until a single chunk is left
+    private final class AssignTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int fromChunk;
+        private final int toChunk;
+
+        AssignTask(int fromChunk, int toChunk) {
+            this.fromChunk = fromChunk;
+            this.toChunk = toChunk;
+        }
+
+        @Override
+        protected void compute() {
+            if (toChunk - fromChunk == 1) {
+                ClusterSums partial = chunkSums[fromChunk];
+                partial.clear();
+                int from = fromChunk * CHUNK_SIZE;
+                assignRange(from, Math.min(colors.length, from + CHUNK_SIZE), partial, chunkDistances[fromChunk]);
+                return;
+            }
+            int mid = (fromChunk + toChunk) >>> 1;
+            invokeAll(new AssignTask(fromChunk, mid), new AssignTask(mid, toChunk));
+        }
+    }
+
+    // running sums of the colors assigned to each cluster
+    private static final class ClusterSums {
+        final long[] sumR;
+        final long[] sumG;
+        final long[] sumB;
+        final long[] weight;
+
+        ClusterSums(int numColors) {
+            sumR = new long[numColors];
+            sumG = new long[numColors];
+            sumB = new long[numColors];
+            weight = new long[numColors];
+        }
+
+        void clear() {
+            Arrays.fill(sumR, 0);
+            Arrays.fill(sumG, 0);
+            Arrays.fill(sumB, 0);
+            Arrays.fill(weight, 0);
+        }
+
+        void add(ClusterSums other) {
+            for (int i = 0; i < weight.length; i++) {
+                sumR[i] += other.sumR[i];
+                sumG[i] += other.sumG[i];
+                sumB[i] += other.sumB[i];
+                weight[i] += other.weight[i];
+            }
+        }
+    }
+}
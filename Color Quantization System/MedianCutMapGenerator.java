@@ -0,0 +1,204 @@
+
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Heckbert's median cut. The colors of the histogram start out in a single
+ * box; the box with the most pixels times its widest channel range is taken
+ * from a priority queue and split at the pixel-weighted median of that
+ * channel, until there are numColors boxes. Each box contributes the weighted
+ * mean of its colors to the palette. There is no iteration, so this sits
+ * between BucketingMapGenerator and ClusteringMapGenerator in both speed and
+ * quality, and it makes a good seed for the latter.
+ */
+public class MedianCutMapGenerator implements ColorMapGenerator_Inter {
+
+    public MedianCutMapGenerator() {
+
+    }
+
+    /**
+     * Produces an initial palette. For bucketing implementations, the initial
+     * palette will be the centers of the evenly-divided buckets. For clustering
+     * implementations, the initial palette will be the initial centroids. When
+     * needed, a distance metric should be specified when the color map
+     * generator is constructed.
+     *
+     * @param pixelArray the 2D Pixel array that represents a bitmap image
+     * @param numColors  the number of desired colors in the palette
+     * @return a Pixel array containing numColors elements
+     */
+    public Pixel[] generateColorPalette(Pixel[][] pixelArray, int numColors) {
+        return generateColorPalette(ColorHistogram.of(PackedRaster.fromPixelMatrix(pixelArray)), numColors);
+    }
+
+    // when the image has fewer distinct colors than numColors, the palette
+    // ends with null entries
+    @Override
+    public Pixel[] generateColorPalette(ColorHistogram histogram, int numColors) {
+        if (numColors <= 0) {
+            throw new IllegalArgumentException("Number of colors must be positive");
+        }
+        Pixel[] palette = new Pixel[numColors];
+        if (histogram.isEmpty()) {
+            return palette;
+        }
+
+        // working copies, reordered in place as boxes are split
+        int[] colors = histogram.getColors().clone();
+        int[] counts = histogram.getCounts().clone();
+
+        PriorityQueue<Box> boxes = new PriorityQueue<>();
+        boxes.add(new Box(colors, counts, 0, colors.length));
+        int boxCount = 1;
+        Box[] finished = new Box[numColors];
+        int finishedCount = 0;
+
+        while (boxCount < numColors && !boxes.isEmpty()) {
+            Box box = boxes.poll();
+            if (box.hi - box.lo < 2) {
+                // a single color cannot be split, and neither can any box after it
+                finished[finishedCount++] = box;
+                continue;
+            }
+            Box[] halves = box.split(colors, counts);
+            boxes.add(halves[0]);
+            boxes.add(halves[1]);
+            boxCount++;
+        }
+        for (Box box : boxes) {
+            finished[finishedCount++] = box;
+        }
+
+        for (int i = 0; i < finishedCount; i++) {
+            palette[i] = finished[i].meanColor(colors, counts);
+        }
+        return palette;
+    }
+
+    /**
+     * Computes the reduced color map. For bucketing implementations, this will
+     * map each color to the center of its bucket. For clustering
+     * implementations, this will map each color to its final centroid. When
+     * needed, a distance metric should be specified when the color map
+     * generator is constructed.
+     *
+     * @param pixelArray          the pixels array that represents a bitmap image
+     * @param initialColorPalette an initial color palette, such as those
+     *                            generated by generateColorPalette, represented as
+     *                            an array of Pixels
+     * @return A Map that maps each distinct color in pixelArray to a final
+     *         color
+     */
+    public Map<Pixel, Pixel> generateColorMap(Pixel[][] pixelArray, Pixel[] initialColorPalette) {
+        ColorHistogram histogram = ColorHistogram.of(PackedRaster.fromPixelMatrix(pixelArray));
+        return generatePackedColorMap(histogram, initialColorPalette).toPixelMap();
+    }
+
+    // each color goes to its nearest palette entry, which is never worse than
+    // the box it ended up in
+    @Override
+    public PackedColorMap generatePackedColorMap(ColorHistogram histogram, Pixel[] initialColorPalette) {
+        return new PaletteIndex(new SquaredEuclideanMetric(), initialColorPalette).mapColors(histogram);
+    }
+
+    // a range [lo, hi) of the working color arrays
+    private static final class Box implements Comparable<Box> {
+        final int lo;
+        final int hi;
+        final long population;
+        final int widestChannel;
+        final int widestRange;
+
+        Box(int[] colors, int[] counts, int lo, int hi) {
+            this.lo = lo;
+            this.hi = hi;
+
+            int[] min = {255, 255, 255};
+            int[] max = {0, 0, 0};
+            long total = 0;
+            for (int i = lo; i < hi; i++) {
+                for (int c = 0; c < 3; c++) {
+                    int value = channel(colors[i], c);
+                    min[c] = Math.min(min[c], value);
+                    max[c] = Math.max(max[c], value);
+                }
+                total += counts[i];
+            }
+            population = total;
+
+            int widest = 0;
+            for (int c = 1; c < 3; c++) {
+                if (max[c] - min[c] > max[widest] - min[widest]) {
+                    widest = c;
+                }
+            }
+            widestChannel = widest;
+            widestRange = max[widest] - min[widest];
+        }
+
+        // splits this box at the weighted median of its widest channel
+        Box[] split(int[] colors, int[] counts) {
+            sortByChannel(colors, counts, lo, hi, widestChannel);
+
+            long half = population / 2;
+            long running = 0;
+            int mid = lo + 1;
+            for (int i = lo; i < hi - 1; i++) {
+                running += counts[i];
+                mid = i + 1;
+                if (running >= half) {
+                    break;
+                }
+            }
+            return new Box[] {new Box(colors, counts, lo, mid), new Box(colors, counts, mid, hi)};
+        }
+
+        Pixel meanColor(int[] colors, int[] counts) {
+            long sumR = 0, sumG = 0, sumB = 0;
+            for (int i = lo; i < hi; i++) {
+                sumR += (long) counts[i] * channel(colors[i], 0);
+                sumG += (long) counts[i] * channel(colors[i], 1);
+                sumB += (long) counts[i] * channel(colors[i], 2);
+            }
+            return new Pixel((int) Math.round((double) sumR / population),
+                    (int) Math.round((double) sumG / population),
+                    (int) Math.round((double) sumB / population));
+        }
+
+        // largest population times spread first; boxes that cannot be split
+        // (a single color) come last
+        @Override
+        public int compareTo(Box other) {
+            boolean splittable = hi - lo > 1;
+            boolean otherSplittable = other.hi - other.lo > 1;
+            if (splittable != otherSplittable) {
+                return splittable ? -1 : 1;
+            }
+            int byScore = Double.compare((double) other.population * other.widestRange,
+                    (double) population * widestRange);
+            return (byScore != 0) ? byScore : Integer.compare(lo, other.lo);
+        }
+    }
+
+    // sorts colors[lo, hi) and the matching counts by one channel, packing
+    // each pair into a long so the sort stays on primitives
+    private static void sortByChannel(int[] colors, int[] counts, int lo, int hi, int channel) {
+        long[] keys = new long[hi - lo];
+        for (int i = lo; i < hi; i++) {
+            keys[i - lo] = ((long) channel(colors[i], channel) << 55) | ((long) colors[i] << 31) | counts[i];
+        }
+        Arrays.sort(keys);
+        for (int i = lo; i < hi; i++) {
+            long key = keys[i - lo];
+            colors[i] = (int) ((key >>> 31) & 0xFFFFFF);
+            counts[i] = (int) (key & 0x7FFFFFFF);
+        }
+    }
+
+    private static int channel(int rgb, int channel) {
+        return (rgb >> (16 - 8 * channel)) & 0xFF;
+    }
+}
@@ -0,0 +1,197 @@
+
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Mini-batch k-means (Sculley, 2010). Each round draws a small random batch of
+ * pixels from the color histogram, assigns them to their nearest centroids and
+ * nudges each centroid toward its samples with a learning rate of one over the
+ * number of samples it has absorbed so far. The cost depends on the batch size
+ * and batch count rather than the image size, at a small loss of quality
+ * compared to ClusteringMapGenerator.
+ */
+public class MiniBatchMapGenerator implements ColorMapGenerator_Inter {
+    // how many distinct colors farthest-first seeding looks at
+    private static final int SEED_SAMPLE_SIZE = 4096;
+
+    private DistanceMetric_Inter distanceMetric;
+    private int batchSize;
+    private int maxBatches;
+    private double tolerance;
+    private long seed;
+
+    public MiniBatchMapGenerator(DistanceMetric_Inter metric) {
+
+        this(metric, 1024, 100, 0.5, 1501);
+
+    }
+
+    // batchSize pixels are drawn per round for at most maxBatches rounds;
+    // the rounds stop early once no centroid moves more than tolerance (in
+    // RGB units) during a batch. seed makes the sampling repeatable.
+    public MiniBatchMapGenerator(DistanceMetric_Inter metric, int batchSize, int maxBatches, double tolerance, long seed) {
+
+        if (batchSize <= 0 || maxBatches <= 0) {
+            throw new IllegalArgumentException("Batch size and batch count must be positive");
+        }
+        if (tolerance < 0) {
+            throw new IllegalArgumentException("Tolerance must not be negative");
+        }
+        this.distanceMetric = metric;
+        this.batchSize = batchSize;
+        this.maxBatches = maxBatches;
+        this.tolerance = tolerance;
+        this.seed = seed;
+
+    }
+
+    /**
+     * Produces an initial palette. For bucketing implementations, the initial
+     * palette will be the centers of the evenly-divided buckets. For clustering
+     * implementations, the initial palette will be the initial centroids. When
+     * needed, a distance metric should be specified when the color map
+     * generator is constructed.
+     *
+     * @param pixelArray the 2D Pixel array that represents a bitmap image
+     * @param numColors  the number of desired colors in the palette
+     * @return a Pixel array containing numColors elements
+     */
+    public Pixel[] generateColorPalette(Pixel[][] pixelArray, int numColors) {
+        return generateColorPalette(ColorHistogram.of(PackedRaster.fromPixelMatrix(pixelArray)), numColors);
+    }
+
+    // farthest-first seeding, run on a random sample of the distinct colors so
+    // that it does not grow with the image either
+    @Override
+    public Pixel[] generateColorPalette(ColorHistogram histogram, int numColors) {
+        if (numColors <= 0) {
+            throw new IllegalArgumentException("Number of colors must be positive");
+        }
+        ColorHistogram sample = sampleColors(histogram, new Random(seed));
+        return new FarthestFirstSeeder(distanceMetric, sample, null).seed(histogram.getFirstColor(), numColors);
+    }
+
+    // a histogram of at most SEED_SAMPLE_SIZE distinct colors drawn uniformly,
+    // always including the first color of the image
+    private ColorHistogram sampleColors(ColorHistogram histogram, Random random) {
+        if (histogram.size() <= SEED_SAMPLE_SIZE) {
+            return histogram;
+        }
+        int[] colors = histogram.getColors();
+        int[] sampled = new int[SEED_SAMPLE_SIZE];
+        sampled[0] = histogram.getFirstColor();
+        for (int i = 1; i < sampled.length; i++) {
+            sampled[i] = colors[random.nextInt(colors.length)];
+        }
+        return ColorHistogram.of(new PackedRaster(sampled.length, 1, sampled));
+    }
+
+    /**
+     * Computes the reduced color map. For bucketing implementations, this will
+     * map each color to the center of its bucket. For clustering
+     * implementations, this will map each color to its final centroid. When
+     * needed, a distance metric should be specified when the color map
+     * generator is constructed.
+     *
+     * @param pixelArray          the pixels array that represents a bitmap image
+     * @param initialColorPalette an initial color palette, such as those
+     *                            generated by generateColorPalette, represented as
+     *                            an array of Pixels
+     * @return A Map that maps each distinct color in pixelArray to a final
+     *         color
+     */
+    public Map<Pixel, Pixel> generateColorMap(Pixel[][] pixelArray, Pixel[] initialColorPalette) {
+        ColorHistogram histogram = ColorHistogram.of(PackedRaster.fromPixelMatrix(pixelArray));
+        return generatePackedColorMap(histogram, initialColorPalette).toPixelMap();
+    }
+
+    @Override
+    public PackedColorMap generatePackedColorMap(ColorHistogram histogram, Pixel[] initialColorPalette) {
+        int numColors = initialColorPalette.length;
+        double[] centerR = new double[numColors];
+        double[] centerG = new double[numColors];
+        double[] centerB = new double[numColors];
+        long[] absorbed = new long[numColors];
+        int[] centroids = new int[numColors];
+        boolean[] present = new boolean[numColors];
+        for (int i = 0; i < numColors; i++) {
+            if (initialColorPalette[i] != null) {
+                centerR[i] = initialColorPalette[i].getRed();
+                centerG[i] = initialColorPalette[i].getGreen();
+                centerB[i] = initialColorPalette[i].getBlue();
+                centroids[i] = initialColorPalette[i].getRGB();
+                present[i] = true;
+            }
+        }
+        if (histogram.isEmpty()) {
+            return new PackedColorMap(new int[0], new int[0], initialColorPalette);
+        }
+
+        // running pixel counts, so a pixel can be drawn with one binary search
+        int[] colors = histogram.getColors();
+        int[] counts = histogram.getCounts();
+        long[] cumulative = new long[colors.length];
+        long total = 0;
+        for (int i = 0; i < colors.length; i++) {
+            total += counts[i];
+            cumulative[i] = total;
+        }
+
+        Random random = new Random(seed);
+        PaletteIndex index = new PaletteIndex(distanceMetric, initialColorPalette);
+        int[] batch = new int[batchSize];
+        int[] nearest = new int[batchSize];
+        double[] distances = new double[numColors];
+        float[] features = index.featureScratch();
+        double[] startR = new double[numColors];
+        double[] startG = new double[numColors];
+        double[] startB = new double[numColors];
+
+        for (int round = 0; round < maxBatches; round++) {
+            // draw pixels uniformly, i.e. colors in proportion to their counts
+            for (int s = 0; s < batchSize; s++) {
+                long target = (long) (random.nextDouble() * total);
+                int position = Arrays.binarySearch(cumulative, target + 1);
+                batch[s] = colors[(position >= 0) ? position : -position - 1];
+                nearest[s] = index.nearest(batch[s], distances, features);
+            }
+
+            System.arraycopy(centerR, 0, startR, 0, numColors);
+            System.arraycopy(centerG, 0, startG, 0, numColors);
+            System.arraycopy(centerB, 0, startB, 0, numColors);
+
+            // per-centroid learning rate: 1 / samples absorbed so far
+            for (int s = 0; s < batchSize; s++) {
+                int c = nearest[s];
+                int rgb = batch[s];
+                absorbed[c]++;
+                double rate = 1.0 / absorbed[c];
+                centerR[c] += rate * (((rgb >> 16) & 0xFF) - centerR[c]);
+                centerG[c] += rate * (((rgb >> 8) & 0xFF) - centerG[c]);
+                centerB[c] += rate * ((rgb & 0xFF) - centerB[c]);
+            }
+
+            double maxShift = 0;
+            for (int i = 0; i < numColors; i++) {
+                if (!present[i]) continue;
+
+                double dr = centerR[i] - startR[i];
+                double dg = centerG[i] - startG[i];
+                double db = centerB[i] - startB[i];
+                maxShift = Math.max(maxShift, Math.sqrt(dr * dr + dg * dg + db * db));
+                centroids[i] = ((int) Math.round(centerR[i]) << 16)
+                        | ((int) Math.round(centerG[i]) << 8)
+                        | (int) Math.round(centerB[i]);
+            }
+            index.rebuild(centroids, present);
+
+            if (maxShift <= tolerance) {
+                break;
+            }
+        }
+
+        return index.mapColors(histogram);
+    }
+}
@@ -0,0 +1,202 @@
+
+
+import java.util.ArrayDeque;
+import java.util.Map;
+
+/**
+ * Octree quantization (Gervautz and Purgathofer). Pixels are added one at a
+ * time to an eight level tree whose branches follow the bits of the red,
+ * green and blue channels. Whenever the tree has more than numColors leaves,
+ * the deepest internal node added most recently is folded into a leaf. The
+ * tree therefore never holds much more than numColors leaves, so memory is
+ * bounded by the palette size rather than by the number of distinct colors,
+ * and a raster can be streamed through it without building a histogram.
+ */
+public class OctreeMapGenerator implements ColorMapGenerator_Inter {
+    private static final int DEPTH = 8;
+
+    public OctreeMapGenerator() {
+
+    }
+
+    /**
+     * Produces an initial palette. For bucketing implementations, the initial
+     * palette will be the centers of the evenly-divided buckets. For clustering
+     * implementations, the initial palette will be the initial centroids. When
+     * needed, a distance metric should be specified when the color map
+     * generator is constructed.
+     *
+     * @param pixelArray the 2D Pixel array that represents a bitmap image
+     * @param numColors  the number of desired colors in the palette
+     * @return a Pixel array containing numColors elements
+     */
+    public Pixel[] generateColorPalette(Pixel[][] pixelArray, int numColors) {
+        Octree tree = new Octree(numColors);
+        for (Pixel[] column : pixelArray) {
+            for (Pixel pixel : column) {
+                tree.add(pixel.getRGB(), 1);
+            }
+        }
+        return tree.palette();
+    }
+
+    // streams the pixels straight into the tree; no histogram is built
+    @Override
+    public Pixel[] generateColorPalette(PackedRaster raster, int numColors) {
+        Octree tree = new Octree(numColors);
+        for (int rgb : raster.getData()) {
+            tree.add(rgb, 1);
+        }
+        return tree.palette();
+    }
+
+    @Override
+    public Pixel[] generateColorPalette(ColorHistogram histogram, int numColors) {
+        Octree tree = new Octree(numColors);
+        int[] colors = histogram.getColors();
+        int[] counts = histogram.getCounts();
+        for (int i = 0; i < colors.length; i++) {
+            tree.add(colors[i], counts[i]);
+        }
+        return tree.palette();
+    }
+
+    /**
+     * Computes the reduced color map. For bucketing implementations, this will
+     * map each color to the center of its bucket. For clustering
+     * implementations, this will map each color to its final centroid. When
+     * needed, a distance metric should be specified when the color map
+     * generator is constructed.
+     *
+     * @param pixelArray          the pixels array that represents a bitmap image
+     * @param initialColorPalette an initial color palette, such as those
+     *                            generated by generateColorPalette, represented as
+     *                            an array of Pixels
+     * @return A Map that maps each distinct color in pixelArray to a final
+     *         color
+     */
+    public Map<Pixel, Pixel> generateColorMap(Pixel[][] pixelArray, Pixel[] initialColorPalette) {
+        ColorHistogram histogram = ColorHistogram.of(PackedRaster.fromPixelMatrix(pixelArray));
+        return generatePackedColorMap(histogram, initialColorPalette).toPixelMap();
+    }
+
+    // each color goes to its nearest palette entry rather than to the leaf it
+    // fell into, which can only be closer
+    @Override
+    public PackedColorMap generatePackedColorMap(ColorHistogram histogram, Pixel[] initialColorPalette) {
+        return new PaletteIndex(new SquaredEuclideanMetric(), initialColorPalette).mapColors(histogram);
+    }
+
+    // one node of the tree; leaves hold the channel sums of their pixels
+    private static final class Node {
+        long sumR, sumG, sumB;
+        long count;
+        Node[] children;
+
+        Node(boolean leaf) {
+            if (!leaf) {
+                children = new Node[8];
+            }
+        }
+
+        boolean isLeaf() {
+            return children == null;
+        }
+    }
+
+    private static final class Octree {
+        private final int maxLeaves;
+        private final Node root = new Node(false);
+        // internal nodes by level, most recently added on top
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        private final ArrayDeque<Node>[] reducible = new ArrayDeque[DEPTH];
+        private int leafCount;
+
+        Octree(int maxLeaves) {
+            if (maxLeaves <= 0) {
+                throw new IllegalArgumentException("Number of colors must be positive");
+            }
+            this.maxLeaves = maxLeaves;
+            for (int level = 0; level < DEPTH; level++) {
+                reducible[level] = new ArrayDeque<>();
+            }
+            reducible[0].push(root);
+        }
+
+        void add(int rgb, int weight) {
+            int r = (rgb >> 16) & 0xFF;
+            int g = (rgb >> 8) & 0xFF;
+            int b = rgb & 0xFF;
+
+            Node node = root;
+            for (int level = 0; level < DEPTH && !node.isLeaf(); level++) {
+                int shift = 7 - level;
+                int child = (((r >> shift) & 1) << 2) | (((g >> shift) & 1) << 1) | ((b >> shift) & 1);
+                if (node.children[child] == null) {
+                    boolean leaf = level + 1 == DEPTH;
+                    node.children[child] = new Node(leaf);
+                    if (leaf) {
+                        leafCount++;
+                    } else {
+                        reducible[level + 1].push(node.children[child]);
+                    }
+                }
+                node = node.children[child];
+            }
+            node.sumR += (long) r * weight;
+            node.sumG += (long) g * weight;
+            node.sumB += (long) b * weight;
+            node.count += weight;
+
+            while (leafCount > maxLeaves) {
+                reduce();
+            }
+        }
+
+        // folds the children of the deepest, newest internal node into it
+        private void reduce() {
+            int level = DEPTH - 1;
+            while (reducible[level].isEmpty()) {
+                level--;
+            }
+            Node node = reducible[level].pop();
+            int merged = 0;
+            for (Node child : node.children) {
+                if (child != null) {
+                    // children are all leaves, since deeper levels are empty
+                    node.sumR += child.sumR;
+                    node.sumG += child.sumG;
+                    node.sumB += child.sumB;
+                    node.count += child.count;
+                    merged++;
+                }
+            }
+            node.children = null;
+            leafCount -= merged - 1;
+        }
+
+        // the mean color of every non-empty leaf, padded with nulls
+        Pixel[] palette() {
+            Pixel[] palette = new Pixel[maxLeaves];
+            collect(root, palette, 0);
+            return palette;
+        }
+
+        private int collect(Node node, Pixel[] palette, int next) {
+            if (node.isLeaf()) {
+                if (node.count > 0) {
+                    palette[next++] = new Pixel((int) Math.round((double) node.sumR / node.count),
+                            (int) Math.round((double) node.sumG / node.count),
+                            (int) Math.round((double) node.sumB / node.count));
+                }
+                return next;
+            }
+            for (Node child : node.children) {
+                if (child != null) {
+                    next = collect(child, palette, next);
+                }
+            }
+            return next;
+        }
+    }
+}
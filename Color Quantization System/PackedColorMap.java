@@ -0,0 +1,201 @@
+
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A color map from packed 0xRRGGBB source colors to entries of a palette,
+ * backed by primitive arrays instead of a HashMap of Pixels.
+ *
+ * Small maps use an open-addressing int-to-int table. Once the number of
+ * distinct source colors passes DENSE_THRESHOLD, a table with one slot for
+ * every possible 24-bit color is used instead, so a lookup is a single array
+ * load.
+ */
+public final class PackedColorMap {
+    // above this many source colors the 2^24 entry table (32 MB) pays for itself
+    public static final int DENSE_THRESHOLD = 1 << 18;
+
+    private static final int EMPTY = -1;
+
+    private final Pixel[] palette;
+    private final int[] paletteRGB;
+    private final int[] colors;
+
+    // dense mode: palette index + 1 for every 24-bit color, 0 when unmapped
+    private final char[] dense;
+
+    // hashed mode: linear probing over keys, EMPTY marks a free slot
+    private final int[] keys;
+    private final int[] values;
+    private final int mask;
+
+    /**
+     * Builds a color map where colors[i] maps to palette[paletteIndices[i]].
+     * The palette may contain null entries as long as no color maps to them.
+     *
+     * @param colors         distinct packed source colors
+     * @param paletteIndices the palette index each source color maps to
+     * @param palette        the final color palette
+     */
+    public PackedColorMap(int[] colors, int[] paletteIndices, Pixel[] palette) {
+        if (colors.length != paletteIndices.length) {
+            throw new IllegalArgumentException("Every color needs exactly one palette index");
+        }
+        this.palette = palette;
+        this.colors = colors;
+        this.paletteRGB = new int[palette.length];
+        for (int i = 0; i < palette.length; i++) {
+            paletteRGB[i] = (palette[i] == null) ? 0 : palette[i].getRGB();
+        }
+
+        for (int index : paletteIndices) {
+            if (index < 0 || index >= palette.length || palette[index] == null) {
+                throw new IllegalArgumentException("Palette index " + index + " does not name a palette color");
+            }
+        }
+
+        if (colors.length > DENSE_THRESHOLD && palette.length < Character.MAX_VALUE) {
+            dense = new char[1 << 24];
+            for (int i = 0; i < colors.length; i++) {
+                dense[colors[i]] = (char) (paletteIndices[i] + 1);
+            }
+            keys = null;
+            values = null;
+            mask = 0;
+        } else {
+            // keep the load factor at or below one half
+            int capacity = Integer.highestOneBit(Math.max(4, colors.length * 2 - 1)) << 1;
+            dense = null;
+            keys = new int[capacity];
+            values = new int[capacity];
+            mask = capacity - 1;
+            Arrays.fill(keys, EMPTY);
+            for (int i = 0; i < colors.length; i++) {
+                int slot = slot(colors[i]);
+                while (keys[slot] != EMPTY && keys[slot] != colors[i]) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = colors[i];
+                values[slot] = paletteIndices[i];
+            }
+        }
+    }
+
+    private int slot(int rgb) {
+        // Fibonacci hashing spreads neighbouring colors across the table
+        return ((rgb * 0x9E3779B9) >>> 8) & mask;
+    }
+
+    /**
+     * Returns the palette index that rgb maps to.
+     *
+     * @param rgb a packed source color
+     * @return the palette index, or -1 if rgb is not in this map
+     */
+    public int indexOf(int rgb) {
+        if (dense != null) {
+            return dense[rgb & 0xFFFFFF] - 1;
+        }
+        int slot = slot(rgb);
+        int key;
+        while ((key = keys[slot]) != EMPTY) {
+            if (key == rgb) {
+                return values[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the packed palette color that rgb maps to.
+     *
+     * @param rgb a packed source color that is in this map
+     * @return the packed color it is mapped to
+     */
+    public int map(int rgb) {
+        int index = indexOf(rgb);
+        if (index < 0) {
+            throw new IllegalArgumentException("Color " + Integer.toHexString(rgb) + " is not in the color map");
+        }
+        return paletteRGB[index];
+    }
+
+    public boolean containsColor(int rgb) {
+        return indexOf(rgb) >= 0;
+    }
+
+    // number of distinct source colors in this map
+    public int size() {
+        return colors.length;
+    }
+
+    // the source colors, in the order they were given; this is the backing
+    // array and must not be modified
+    int[] getColors() {
+        return colors;
+    }
+
+    // memory taken by the lookup tables and colors, not counting headers or
+    // the palette Pixels
+    public long getSizeInBytes() {
+        long tables = (dense != null) ? 2L * dense.length : 8L * keys.length;
+        return tables + 4L * colors.length + 4L * paletteRGB.length;
+    }
+
+    public Pixel[] getPalette() {
+        return palette;
+    }
+
+    // packed palette colors; entries for null palette slots are 0
+    public int[] getPaletteRGB() {
+        return paletteRGB;
+    }
+
+    /**
+     * Converts this map to the Map of Pixels used by the original
+     * ColorMapGenerator_Inter methods. Every value is one of the palette
+     * Pixels, so colors that share a palette entry share the same object.
+     *
+     * @return A Map that maps each source color to its palette color
+     */
+    public Map<Pixel, Pixel> toPixelMap() {
+        Map<Pixel, Pixel> colorMap = new HashMap<>();
+        for (int rgb : colors) {
+            colorMap.put(Pixel.fromRGB(rgb), palette[indexOf(rgb)]);
+        }
+        return colorMap;
+    }
+
+    /**
+     * Builds a packed color map from a Map of Pixels, such as the ones
+     * returned by generateColorMap.
+     *
+     * @param colorMap maps each source color to its final color
+     * @return an equivalent packed color map
+     */
+    public static PackedColorMap fromPixelMap(Map<Pixel, Pixel> colorMap) {
+        Map<Pixel, Integer> paletteIndex = new HashMap<>();
+        int[] colors = new int[colorMap.size()];
+        int[] indices = new int[colorMap.size()];
+        int i = 0;
+        for (Map.Entry<Pixel, Pixel> entry : colorMap.entrySet()) {
+            Integer index = paletteIndex.get(entry.getValue());
+            if (index == null) {
+                index = paletteIndex.size();
+                paletteIndex.put(entry.getValue(), index);
+            }
+            colors[i] = entry.getKey().getRGB();
+            indices[i] = index;
+            i++;
+        }
+
+        Pixel[] palette = new Pixel[paletteIndex.size()];
+        for (Map.Entry<Pixel, Integer> entry : paletteIndex.entrySet()) {
+            palette[entry.getValue()] = entry.getKey();
+        }
+        return new PackedColorMap(colors, indices, palette);
+    }
+}
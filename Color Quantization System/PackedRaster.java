@@ -0,0 +1,110 @@
+
+
+/**
+ * A primitive image raster. Every pixel is stored as a packed 0xRRGGBB int in
+ * a single array laid out row-major, so the color at (x, y) lives at index
+ * y * width + x. This avoids allocating one Pixel object per pixel.
+ */
+public final class PackedRaster {
+    private final int width;
+    private final int height;
+    private final int[] data;
+
+    public PackedRaster(int width, int height) {
+        this(width, height, new int[checkedSize(width, height)]);
+    }
+
+    // wraps an existing buffer without copying it; any alpha or other bits
+    // above 0xFFFFFF are cleared in place, as setRGB does
+    public PackedRaster(int width, int height, int[] data) {
+        if (data.length != checkedSize(width, height)) {
+            throw new IllegalArgumentException("Raster data must hold exactly width * height pixels");
+        }
+        for (int i = 0; i < data.length; i++) {
+            data[i] &= 0xFFFFFF;
+        }
+        this.width = width;
+        this.height = height;
+        this.data = data;
+    }
+
+    private static int checkedSize(int width, int height) {
+        if (width < 0 || height < 0) {
+            throw new IllegalArgumentException("Raster dimensions must not be negative");
+        }
+        long size = (long) width * height;
+        if (size > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Raster is too large: " + width + "x" + height);
+        }
+        return (int) size;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int size() {
+        return data.length;
+    }
+
+    /**
+     * Returns the backing array (not a copy). Index y * width + x holds the
+     * packed color of pixel (x, y).
+     *
+     * @return the row-major packed pixel data
+     */
+    public int[] getData() {
+        return data;
+    }
+
+    public int getRGB(int x, int y) {
+        return data[y * width + x];
+    }
+
+    public void setRGB(int x, int y, int rgb) {
+        data[y * width + x] = rgb & 0xFFFFFF;
+    }
+
+    /**
+     * Converts a Pixel matrix to a raster. Pixel matrices in this project are
+     * indexed [x][y], as produced by Util.convertBitmapToPixelMatrix.
+     *
+     * @param pixelMatrix the 2D Pixel array that represents a bitmap image
+     * @return a raster holding the same colors
+     */
+    public static PackedRaster fromPixelMatrix(Pixel[][] pixelMatrix) {
+        int width = pixelMatrix.length;
+        int height = (width > 0) ? pixelMatrix[0].length : 0;
+        PackedRaster raster = new PackedRaster(width, height);
+        int[] data = raster.data;
+
+        for (int x = 0; x < width; x++) {
+            Pixel[] column = pixelMatrix[x];
+            for (int y = 0; y < height; y++) {
+                data[y * width + x] = column[y].getRGB();
+            }
+        }
+        return raster;
+    }
+
+    /**
+     * Converts this raster back to a Pixel matrix indexed [x][y]. This is only
+     * meant as an adapter for callers that still work with Pixel arrays.
+     *
+     * @return a newly allocated Pixel matrix
+     */
+    public Pixel[][] toPixelMatrix() {
+        Pixel[][] pixelMatrix = new Pixel[width][height];
+        for (int y = 0; y < height; y++) {
+            int rowStart = y * width;
+            for (int x = 0; x < width; x++) {
+                pixelMatrix[x][y] = Pixel.fromRGB(data[rowStart + x]);
+            }
+        }
+        return pixelMatrix;
+    }
+}
@@ -0,0 +1,107 @@
+
+
+/**
+ * A palette laid out for batch distance computations. The red, green and
+ * blue channels (and the hue) of the entries in use sit in separate primitive
+ * arrays, so a metric can compare one color against the whole palette in a
+ * tight loop over plain arrays that the JIT is able to vectorize.
+ *
+ * Null or unused palette entries are left out; entry n of the buffer is
+ * palette entry paletteIndex(n), and entries keep their palette order.
+ */
+public final class PaletteBuffer {
+    private final int[] rgb;
+    private final int[] red;
+    private final int[] green;
+    private final int[] blue;
+    private final double[] hue;
+    private final int[] paletteIndex;
+    private int size;
+
+    /**
+     * Creates an empty buffer for palettes of up to capacity entries.
+     *
+     * @param capacity the largest palette this buffer will hold
+     */
+    public PaletteBuffer(int capacity) {
+        rgb = new int[capacity];
+        red = new int[capacity];
+        green = new int[capacity];
+        blue = new int[capacity];
+        hue = new double[capacity];
+        paletteIndex = new int[capacity];
+    }
+
+    /**
+     * Creates a buffer holding the non-null entries of palette.
+     *
+     * @param palette the palette to lay out
+     */
+    public PaletteBuffer(Pixel[] palette) {
+        this(palette.length);
+        for (int i = 0; i < palette.length; i++) {
+            if (palette[i] != null) {
+                append(palette[i].getRGB(), i);
+            }
+        }
+    }
+
+    /**
+     * Replaces the contents with the entries of colors marked present. No
+     * memory is allocated.
+     *
+     * @param colors  packed palette colors
+     * @param present which entries are in use
+     */
+    public void set(int[] colors, boolean[] present) {
+        size = 0;
+        for (int i = 0; i < colors.length; i++) {
+            if (present[i]) {
+                append(colors[i], i);
+            }
+        }
+    }
+
+    private void append(int color, int index) {
+        rgb[size] = color;
+        red[size] = (color >> 16) & 0xFF;
+        green[size] = (color >> 8) & 0xFF;
+        blue[size] = color & 0xFF;
+        hue[size] = Pixel.hueOf(color);
+        paletteIndex[size] = index;
+        size++;
+    }
+
+    // number of entries in use
+    public int size() {
+        return size;
+    }
+
+    // packed color of entry n
+    public int getRGB(int n) {
+        return rgb[n];
+    }
+
+    // position in the original palette of entry n
+    public int paletteIndex(int n) {
+        return paletteIndex[n];
+    }
+
+    // The channel arrays themselves, for metric implementations. Only the
+    // first size() elements are meaningful.
+    int[] reds() {
+        return red;
+    }
+
+    int[] greens() {
+        return green;
+    }
+
+    int[] blues() {
+        return blue;
+    }
+
+    double[] hues() {
+        return hue;
+    }
+}
@@ -0,0 +1,223 @@
+
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Objects;
+
+/**
+ * Remembers the color maps computed for earlier images so that near
+ * duplicates (re-exports, crops, frames of a static scene) can skip palette
+ * generation. Entries are found by a fingerprint of the image's histogram
+ * at 4 bits per channel, in which each of the 4096 coarse bins is reduced to
+ * its share of the pixels in steps of 1/256, together with roughly how many
+ * bins are occupied. Small changes in color or pixel count therefore usually
+ * give the same fingerprint.
+ *
+ * The least recently used entries are evicted once there are more than
+ * maxEntries of them or their color maps take more than maxBytes. A cache
+ * may be shared by several generators and threads.
+ */
+public final class PaletteCache {
+    // coarse bins have 4 bits per channel
+    private static final int BIN_BITS = 4;
+
+    // a bin's share of the pixels is counted in steps of 1/SHARE_STEPS
+    private static final int SHARE_STEPS = 256;
+
+    // occupied bins are counted in steps of this many
+    private static final int OCCUPIED_STEP = 64;
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+
+    private final int maxEntries;
+    private final long maxBytes;
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long bytes;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    public PaletteCache(int maxEntries) {
+
+        this(maxEntries, Long.MAX_VALUE);
+
+    }
+
+    // whichever of the two limits is reached first causes eviction
+    public PaletteCache(int maxEntries, long maxBytes) {
+
+        if (maxEntries <= 0 || maxBytes <= 0) {
+            throw new IllegalArgumentException("Cache limits must be positive");
+        }
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+
+    }
+
+    // what an entry is filed under: the histogram fingerprint, the palette
+    // size and the generator that made it
+    static final class Key {
+        private final long fingerprint;
+        private final int numColors;
+        private final String generator;
+
+        Key(long fingerprint, int numColors, String generator) {
+            this.fingerprint = fingerprint;
+            this.numColors = numColors;
+            this.generator = generator;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return fingerprint == other.fingerprint && numColors == other.numColors
+                    && generator.equals(other.generator);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(fingerprint, numColors, generator);
+        }
+    }
+
+    // the color map made for one image, and the exact hash of that image's
+    // histogram so a repeat of the very same colors can reuse the map as is
+    static final class Entry {
+        final PackedColorMap colorMap;
+        final long exactHash;
+
+        Entry(PackedColorMap colorMap, long exactHash) {
+            this.colorMap = colorMap;
+            this.exactHash = exactHash;
+        }
+
+        long sizeInBytes() {
+            return colorMap.getSizeInBytes();
+        }
+    }
+
+    /**
+     * Fingerprints a histogram at 4 bits per channel. Histograms that differ
+     * only slightly usually share a fingerprint.
+     *
+     * @param histogram the color histogram of an image
+     * @return a 64 bit fingerprint of the coarse histogram
+     */
+    static long fingerprint(ColorHistogram histogram) {
+        long[] bins = histogram.coarseCounts(BIN_BITS);
+        long total = Math.max(1, histogram.getTotalCount());
+        long hash = FNV_OFFSET;
+        int occupied = 0;
+        for (int bin = 0; bin < bins.length; bin++) {
+            if (bins[bin] != 0) {
+                occupied++;
+            }
+            // bins with less than one step of the pixels are left out, so
+            // stray colors do not change the fingerprint
+            long share = bins[bin] * SHARE_STEPS / total;
+            if (share != 0) {
+                hash = mix(mix(hash, bin), share);
+            }
+        }
+        // tells apart images whose colors are all spread too thin to show up
+        return mix(hash, occupied / OCCUPIED_STEP);
+    }
+
+    /**
+     * Hashes every color and count of a histogram.
+     *
+     * @param histogram the color histogram of an image
+     * @return a 64 bit hash of the exact histogram
+     */
+    static long exactHash(ColorHistogram histogram) {
+        int[] colors = histogram.getColors();
+        int[] counts = histogram.getCounts();
+        long hash = FNV_OFFSET;
+        for (int i = 0; i < colors.length; i++) {
+            hash = mix(mix(hash, colors[i]), counts[i]);
+        }
+        return hash;
+    }
+
+    // one 64 bit FNV-1a step over a whole value rather than a byte
+    private static long mix(long hash, long value) {
+        return (hash ^ value) * 0x100000001b3L;
+    }
+
+    /**
+     * Looks up an entry, counting a hit or a miss and marking it as the most
+     * recently used.
+     *
+     * @param key what the entry was filed under
+     * @return the entry, or null if there is none
+     */
+    synchronized Entry get(Key key) {
+        Entry entry = entries.get(key);
+        if (entry != null) {
+            hits++;
+        } else {
+            misses++;
+        }
+        return entry;
+    }
+
+    // like get, but not counted as a hit or a miss
+    synchronized Entry peek(Key key) {
+        return entries.get(key);
+    }
+
+    /**
+     * Adds an entry, replacing any under the same key, then evicts the least
+     * recently used entries until the cache is within its limits. An entry
+     * larger than maxBytes on its own is not kept.
+     *
+     * @param key   what to file the entry under
+     * @param entry the entry to add
+     */
+    synchronized void put(Key key, Entry entry) {
+        Entry old = entries.put(key, entry);
+        if (old != null) {
+            bytes -= old.sizeInBytes();
+        }
+        bytes += entry.sizeInBytes();
+
+        Iterator<Entry> eldest = entries.values().iterator();
+        while (eldest.hasNext() && (entries.size() > maxEntries || bytes > maxBytes)) {
+            bytes -= eldest.next().sizeInBytes();
+            eldest.remove();
+            evictions++;
+        }
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    // number of entries held
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    // memory taken by the cached color maps
+    public synchronized long getSizeInBytes() {
+        return bytes;
+    }
+
+    // removes every entry; the counters are kept
+    public synchronized void clear() {
+        entries.clear();
+        bytes = 0;
+    }
+}
@@ -0,0 +1,308 @@
+
+
+/**
+ * Answers "which palette entry is closest to this color" queries. For squared
+ * Euclidean metrics the palette is kept in a 3D k-d tree over RGB space, so a
+ * query only visits a few entries. Any other metric, such as
+ * CircularHueMetric, falls back to a linear scan that computes the distances
+ * to the whole palette with one batch call. When the metric has a projection,
+ * the scan compares projected features, and colors can be projected once by
+ * the caller instead of on every query.
+ *
+ * Either way, ties go to the lowest palette index, exactly like a linear
+ * scan with a strict comparison. Null palette entries are never returned.
+ */
+public final class PaletteIndex {
+    // below this many entries a linear scan beats walking the tree
+    private static final int MIN_TREE_SIZE = 8;
+
+    private final DistanceMetric_Inter metric;
+    private final int[] paletteRGB;
+    private final boolean[] present;
+    private final boolean useTree;
+
+    // k-d tree over the present entries: the subtree of range [lo, hi) is
+    // rooted at order[(lo + hi) / 2] and split on axis[(lo + hi) / 2]
+    private final int[] order;
+    private final byte[] axis;
+    private int size;
+
+    // the present entries for linear scans
+    private final PaletteBuffer buffer;
+
+    // projected features of the present entries, in buffer order, for
+    // linear scans with a ProjectedMetric_Inter; null otherwise
+    private final ProjectedMetric_Inter projected;
+    private final int dimension;
+    private final int[] presentRGB;
+    private final float[] paletteFeatures;
+
+    /**
+     * Indexes a palette. Null entries are skipped.
+     *
+     * @param metric  the metric that defines "closest"
+     * @param palette the palette to search
+     */
+    public PaletteIndex(DistanceMetric_Inter metric, Pixel[] palette) {
+        this.metric = metric;
+        this.paletteRGB = new int[palette.length];
+        this.present = new boolean[palette.length];
+        this.useTree = metric.isSquaredEuclidean() && palette.length >= MIN_TREE_SIZE;
+        this.order = new int[palette.length];
+        this.axis = new byte[palette.length];
+        this.buffer = new PaletteBuffer(palette.length);
+        this.projected = (!useTree && metric instanceof ProjectedMetric_Inter) ? (ProjectedMetric_Inter) metric : null;
+        this.dimension = (projected != null) ? projected.featureDimension() : 0;
+        this.presentRGB = (dimension > 0) ? new int[palette.length] : null;
+        this.paletteFeatures = (dimension > 0) ? new float[palette.length * dimension] : null;
+
+        for (int i = 0; i < palette.length; i++) {
+            if (palette[i] != null) {
+                paletteRGB[i] = palette[i].getRGB();
+                present[i] = true;
+            }
+        }
+        build();
+    }
+
+    /**
+     * Replaces the indexed colors, for example after k-means moved its
+     * centroids. The number of entries must stay the same; no memory is
+     * allocated.
+     *
+     * @param colors     the new packed palette colors
+     * @param newPresent which entries are in use
+     */
+    void rebuild(int[] colors, boolean[] newPresent) {
+        System.arraycopy(colors, 0, paletteRGB, 0, paletteRGB.length);
+        System.arraycopy(newPresent, 0, present, 0, present.length);
+        build();
+    }
+
+    private void build() {
+        size = 0;
+        for (int i = 0; i < paletteRGB.length; i++) {
+            if (present[i]) {
+                order[size++] = i;
+            }
+        }
+        if (useTree) {
+            buildTree(0, size);
+        } else if (dimension > 0) {
+            for (int n = 0; n < size; n++) {
+                presentRGB[n] = paletteRGB[order[n]];
+            }
+            projected.project(presentRGB, 0, size, paletteFeatures, 0);
+        } else {
+            buffer.set(paletteRGB, present);
+        }
+    }
+
+    private void buildTree(int lo, int hi) {
+        if (hi - lo <= 0) {
+            return;
+        }
+
+        // split on the channel with the widest spread in this range
+        int minR = 255, minG = 255, minB = 255, maxR = 0, maxG = 0, maxB = 0;
+        for (int i = lo; i < hi; i++) {
+            int rgb = paletteRGB[order[i]];
+            minR = Math.min(minR, channel(rgb, 0));
+            maxR = Math.max(maxR, channel(rgb, 0));
+            minG = Math.min(minG, channel(rgb, 1));
+            maxG = Math.max(maxG, channel(rgb, 1));
+            minB = Math.min(minB, channel(rgb, 2));
+            maxB = Math.max(maxB, channel(rgb, 2));
+        }
+        int splitAxis = 0;
+        if (maxG - minG > maxR - minR) splitAxis = 1;
+        if (maxB - minB > Math.max(maxR - minR, maxG - minG)) splitAxis = 2;
+
+        int mid = (lo + hi) >>> 1;
+        select(lo, hi - 1, mid, splitAxis);
+        axis[mid] = (byte) splitAxis;
+        buildTree(lo, mid);
+        buildTree(mid + 1, hi);
+    }
+
+    // quickselect so that order[k] holds the median along axis
+    private void select(int left, int right, int k, int splitAxis) {
+        while (left < right) {
+            int pivot = channel(paletteRGB[order[(left + right) >>> 1]], splitAxis);
+            int i = left;
+            int j = right;
+            while (i <= j) {
+                while (channel(paletteRGB[order[i]], splitAxis) < pivot) i++;
+                while (channel(paletteRGB[order[j]], splitAxis) > pivot) j--;
+                if (i <= j) {
+                    int swap = order[i];
+                    order[i] = order[j];
+                    order[j] = swap;
+                    i++;
+                    j--;
+                }
+            }
+            if (k <= j) {
+                right = j;
+            } else if (k >= i) {
+                left = i;
+            } else {
+                return;
+            }
+        }
+    }
+
+    private static int channel(int rgb, int axis) {
+        return (rgb >> (16 - 8 * axis)) & 0xFF;
+    }
+
+    /**
+     * Finds the palette entry closest to rgb.
+     *
+     * @param rgb a packed 0xRRGGBB color
+     * @return the index of the closest palette entry, or -1 if the palette
+     *         has no entries
+     */
+    public int nearest(int rgb) {
+        return nearest(rgb, useTree ? null : new double[size], featureScratch());
+    }
+
+    // whether queries should be given projected features rather than colors
+    boolean usesFeatures() {
+        return dimension > 0;
+    }
+
+    // number of present (non-null) palette entries
+    int size() {
+        return size;
+    }
+
+    // features per color for usesFeatures queries
+    int featureDimension() {
+        return dimension;
+    }
+
+    // scratch space for the features of one query color, or null when this
+    // index does not use features
+    float[] featureScratch() {
+        return (dimension > 0) ? new float[dimension] : null;
+    }
+
+    // projects colors with the metric of this index, for usesFeatures queries
+    void project(int[] colors, float[] features) {
+        projected.project(colors, 0, colors.length, features, 0);
+    }
+
+    /**
+     * Finds the palette entry closest to a color that has already been
+     * projected with the metric. Only valid when usesFeatures is true.
+     *
+     * @param features  projected features holding the color
+     * @param offset    where the color's features start
+     * @param distances scratch space of at least palette length
+     * @return the index of the closest palette entry, or -1 if the palette
+     *         has no entries
+     */
+    int nearest(float[] features, int offset, double[] distances) {
+        projected.featureDistances(features, offset, paletteFeatures, 0, size, distances);
+        return closest(distances);
+    }
+
+    // the present entry with the smallest distance, lowest index on ties
+    private int closest(double[] distances) {
+        double minDistance = Double.MAX_VALUE;
+        int closest = -1;
+        for (int n = 0; n < size; n++) {
+            if (distances[n] < minDistance) {
+                minDistance = distances[n];
+                closest = n;
+            }
+        }
+        return (closest < 0) ? -1 : order[closest];
+    }
+
+    /**
+     * Finds the palette entry closest to rgb, using caller-owned scratch
+     * arrays for linear scans so repeated queries do not allocate. The
+     * distances must have room for one distance per palette entry, the
+     * features must come from featureScratch, and each thread needs its own.
+     *
+     * @param rgb       a packed 0xRRGGBB color
+     * @param distances scratch space of at least palette length
+     * @param features  scratch space from featureScratch
+     * @return the index of the closest palette entry, or -1 if the palette
+     *         has no entries
+     */
+    int nearest(int rgb, double[] distances, float[] features) {
+        if (dimension > 0) {
+            projected.project(rgb, features, 0);
+            return nearest(features, 0, distances);
+        }
+        if (!useTree) {
+            metric.colorDistances(rgb, buffer, distances);
+            return closest(distances);
+        }
+
+        long best = search(0, size, rgb, Long.MAX_VALUE);
+        return (best == Long.MAX_VALUE) ? -1 : (int) best;
+    }
+
+    // candidates are packed as (squared distance << 32) | palette index, so
+    // comparing them as longs orders by distance and then by index
+    private long search(int lo, int hi, int rgb, long best) {
+        if (hi - lo <= 0) {
+            return best;
+        }
+        int mid = (lo + hi) >>> 1;
+        int index = order[mid];
+        int entry = paletteRGB[index];
+
+        int dr = channel(rgb, 0) - channel(entry, 0);
+        int dg = channel(rgb, 1) - channel(entry, 1);
+        int db = channel(rgb, 2) - channel(entry, 2);
+        long candidate = ((long) (dr * dr + dg * dg + db * db) << 32) | index;
+        best = Math.min(best, candidate);
+
+        int diff = channel(rgb, axis[mid]) - channel(entry, axis[mid]);
+        boolean goLeft = diff <= 0;
+        best = search(goLeft ? lo : mid + 1, goLeft ? mid : hi, rgb, best);
+
+        // the far side can only hold an equal or closer entry if the
+        // splitting plane is no farther than the best so far
+        if ((long) diff * diff <= (best >>> 32)) {
+            best = search(goLeft ? mid + 1 : lo, goLeft ? hi : mid, rgb, best);
+        }
+        return best;
+    }
+
+    /**
+     * Maps every color of a histogram to its closest palette entry.
+     *
+     * @param histogram the colors to map
+     * @return a color map onto the indexed palette
+     */
+    public PackedColorMap mapColors(ColorHistogram histogram) {
+        Pixel[] palette = new Pixel[paletteRGB.length];
+        for (int i = 0; i < palette.length; i++) {
+            if (present[i]) {
+                palette[i] = Pixel.fromRGB(paletteRGB[i]);
+            }
+        }
+
+        int[] colors = histogram.getColors();
+        int[] indices = new int[colors.length];
+        double[] distances = new double[paletteRGB.length];
+        if (dimension > 0) {
+            float[] features = new float[colors.length * dimension];
+            projected.project(colors, 0, colors.length, features, 0);
+            for (int i = 0; i < colors.length; i++) {
+                indices[i] = nearest(features, i * dimension, distances);
+            }
+        } else {
+            for (int i = 0; i < colors.length; i++) {
+                indices[i] = nearest(colors[i], distances, null);
+            }
+        }
+        return new PackedColorMap(colors, indices, palette);
+    }
+}
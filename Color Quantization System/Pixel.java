@@ -30,6 +30,25 @@ public class Pixel {
         return blue;
     }
 
+    /**
+     * Returns the color of this pixel packed into an int as 0xRRGGBB.
+     *
+     * @return the packed RGB value of this pixel
+     */
+    public int getRGB() {
+        return ((red & 0xFF) << 16) | ((green & 0xFF) << 8) | (blue & 0xFF);
+    }
+
+    /**
+     * Creates a pixel from a packed 0xRRGGBB value. Any alpha bits are ignored.
+     *
+     * @param rgb the packed RGB value
+     * @return a new Pixel with the same color
+     */
+    public static Pixel fromRGB(int rgb) {
+        return new Pixel((rgb >> 16) & 0xFF, (rgb >> 8) & 0xFF, rgb & 0xFF);
+    }
+
     /**
      * Returns the hue of this pixel as a an integer from 0 (inclusive) to 360
      * (exclusive). Note that hue is circular, so 359 is most similar to 358 and
@@ -38,6 +57,21 @@ public class Pixel {
      * @return the hue of this pixel
      */
     public int getHue() {
+        return hueOf(red, green, blue);
+    }
+
+    /**
+     * Returns the hue of a packed 0xRRGGBB color, computed the same way as
+     * getHue.
+     *
+     * @param rgb the packed RGB value
+     * @return the hue of the color, from 0 (inclusive) to 360 (exclusive)
+     */
+    public static int hueOf(int rgb) {
+        return hueOf((rgb >> 16) & 0xFF, (rgb >> 8) & 0xFF, rgb & 0xFF);
+    }
+
+    private static int hueOf(int red, int green, int blue) {
         // use floating types to force conversion for ratios later
         double min = Math.min(Math.min(red, green), blue);
         double max = Math.max(Math.max(red, green), blue);
@@ -70,6 +104,8 @@ public class Pixel {
 
     @Override
     public int hashCode() {
-        return (100 * this.red) + (10 * this.green) + (this.blue);
+        // the packed color is unique per color, unlike 100r + 10g + b which
+        // made (1,0,0) and (0,10,0) collide
+        return getRGB();
     }
 }
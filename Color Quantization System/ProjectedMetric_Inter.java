@@ -0,0 +1,52 @@
+/**
+ * A distance metric that computes its distances from a few features of each
+ * color alone, such as its channels or its hue. Callers can then project
+ * every distinct color once and compare features from then on, instead of
+ * unpacking colors for every distance.
+ */
+interface ProjectedMetric_Inter extends DistanceMetric_Inter {
+    /**
+     * Returns how many numbers project writes per color.
+     *
+     * @return the number of features per color
+     */
+    public int featureDimension();
+
+    /**
+     * Writes the features of colors[from, to) into features, starting at
+     * offset, featureDimension() numbers per color.
+     *
+     * @param colors   packed colors
+     * @param from     the first color to project, inclusive
+     * @param to       the last color to project, exclusive
+     * @param features receives the features
+     * @param offset   where the first color's features go
+     */
+    public void project(int[] colors, int from, int to, float[] features, int offset);
+
+    /**
+     * Writes the features of a single color into features, starting at
+     * offset. This must agree with the batch project.
+     *
+     * @param rgb      a packed color
+     * @param features receives the features
+     * @param offset   where the color's features go
+     */
+    public void project(int rgb, float[] features, int offset);
+
+    /**
+     * Computes the distance from one projected color to each of the projected
+     * colors targets[from, to), writing the distance to target n into
+     * distances[n]. This must agree with colorDistance on the colors that
+     * were projected.
+     *
+     * @param query       projected features holding the query color
+     * @param queryOffset where the query color's features start
+     * @param targets     projected features of the colors to compare against
+     * @param from        the first target, inclusive
+     * @param to          the last target, exclusive
+     * @param distances   receives the distances, indexed by target
+     */
+    public void featureDistances(float[] query, int queryOffset, float[] targets, int from, int to,
+            double[] distances);
+}
@@ -0,0 +1,241 @@
+
+
+import java.io.IOException;
+import java.nio.file.Paths;
+
+/**
+ * The result of quantizing an image: a palette plus the palette index of
+ * every pixel. Indices take as few bits as the palette allows. Up to 16
+ * colors they are packed 1, 2 or 4 bits at a time, up to 256 they take a
+ * byte, and beyond that a short (or an int for palettes over 65536 colors).
+ * A 16 color result therefore takes an eighth of the memory of a packed
+ * raster and a small fraction of a Pixel[][].
+ *
+ * Packed rows start on a byte boundary, so separate rows can be filled in by
+ * separate threads.
+ */
+public final class QuantizedImage {
+    private final int width;
+    private final int height;
+    private final int[] paletteRGB;
+    private final int bitsPerIndex;
+
+    // exactly one of these holds the indices
+    private final int rowBytes;
+    private final byte[] bytes;
+    private final short[] shorts;
+    private final int[] ints;
+
+    /**
+     * Creates an image of the given size whose pixels all have palette index
+     * 0.
+     *
+     * @param width      the width of the image
+     * @param height     the height of the image
+     * @param paletteRGB the packed palette colors
+     */
+    public QuantizedImage(int width, int height, int[] paletteRGB) {
+        if (width < 0 || height < 0) {
+            throw new IllegalArgumentException("Image dimensions must not be negative");
+        }
+        if (paletteRGB.length == 0) {
+            throw new IllegalArgumentException("The palette must have at least one color");
+        }
+        this.width = width;
+        this.height = height;
+        this.paletteRGB = paletteRGB;
+        this.bitsPerIndex = bitsPerIndex(paletteRGB.length);
+
+        int pixels = Math.multiplyExact(width, height);
+        if (bitsPerIndex <= 8) {
+            rowBytes = (width * bitsPerIndex + 7) / 8;
+            bytes = new byte[Math.multiplyExact(rowBytes, height)];
+            shorts = null;
+            ints = null;
+        } else if (bitsPerIndex == 16) {
+            rowBytes = 0;
+            bytes = null;
+            shorts = new short[pixels];
+            ints = null;
+        } else {
+            rowBytes = 0;
+            bytes = null;
+            shorts = null;
+            ints = new int[pixels];
+        }
+    }
+
+    // bits each index takes for a palette of the given size
+    static int bitsPerIndex(int paletteSize) {
+        if (paletteSize <= 2) return 1;
+        if (paletteSize <= 4) return 2;
+        if (paletteSize <= 16) return 4;
+        if (paletteSize <= 256) return 8;
+        if (paletteSize <= 65536) return 16;
+        return 32;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getBitsPerIndex() {
+        return bitsPerIndex;
+    }
+
+    // the packed palette colors; this is the backing array
+    public int[] getPaletteRGB() {
+        return paletteRGB;
+    }
+
+    public Pixel[] getPalette() {
+        Pixel[] palette = new Pixel[paletteRGB.length];
+        for (int i = 0; i < palette.length; i++) {
+            palette[i] = Pixel.fromRGB(paletteRGB[i]);
+        }
+        return palette;
+    }
+
+    /**
+     * Returns the palette index of the pixel at (x, y).
+     *
+     * @param x the column, from the left
+     * @param y the row, from the top
+     * @return the palette index of the pixel
+     */
+    public int getIndex(int x, int y) {
+        if (bytes != null) {
+            if (bitsPerIndex == 8) {
+                return bytes[y * rowBytes + x] & 0xFF;
+            }
+            int bit = x * bitsPerIndex;
+            int packed = bytes[y * rowBytes + (bit >> 3)] & 0xFF;
+            // the first pixel sits in the most significant bits
+            return (packed >> (8 - bitsPerIndex - (bit & 7))) & ((1 << bitsPerIndex) - 1);
+        }
+        if (shorts != null) {
+            return shorts[y * width + x] & 0xFFFF;
+        }
+        return ints[y * width + x];
+    }
+
+    /**
+     * Sets the palette index of the pixel at (x, y). Rows are independent, so
+     * threads may fill in different rows at the same time.
+     *
+     * @param x     the column, from the left
+     * @param y     the row, from the top
+     * @param index the palette index
+     */
+    void setIndex(int x, int y, int index) {
+        if (bytes != null) {
+            if (bitsPerIndex == 8) {
+                bytes[y * rowBytes + x] = (byte) index;
+                return;
+            }
+            int bit = x * bitsPerIndex;
+            int position = y * rowBytes + (bit >> 3);
+            int shift = 8 - bitsPerIndex - (bit & 7);
+            int mask = ((1 << bitsPerIndex) - 1) << shift;
+            bytes[position] = (byte) ((bytes[position] & ~mask) | (index << shift));
+        } else if (shorts != null) {
+            shorts[y * width + x] = (short) index;
+        } else {
+            ints[y * width + x] = index;
+        }
+    }
+
+    // the packed color of the pixel at (x, y)
+    public int getRGB(int x, int y) {
+        return paletteRGB[getIndex(x, y)];
+    }
+
+    // memory taken by the indices and the palette, not counting headers
+    public long getSizeInBytes() {
+        long indices = (bytes != null) ? bytes.length : (shorts != null) ? 2L * shorts.length : 4L * ints.length;
+        return indices + 4L * paletteRGB.length;
+    }
+
+    /**
+     * Expands the image into a packed raster.
+     *
+     * @return a raster holding the color of every pixel
+     */
+    public PackedRaster toRaster() {
+        PackedRaster raster = new PackedRaster(width, height);
+        int[] data = raster.getData();
+        if (bitsPerIndex == 8) {
+            for (int i = 0; i < data.length; i++) {
+                data[i] = paletteRGB[bytes[i] & 0xFF];
+            }
+        } else if (shorts != null) {
+            for (int i = 0; i < data.length; i++) {
+                data[i] = paletteRGB[shorts[i] & 0xFFFF];
+            }
+        } else {
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    data[y * width + x] = getRGB(x, y);
+                }
+            }
+        }
+        return raster;
+    }
+
+    /**
+     * Expands the image into a Pixel matrix indexed [x][y]. Every pixel with
+     * the same palette index shares one Pixel object.
+     *
+     * @return a Pixel matrix holding the color of every pixel
+     */
+    public Pixel[][] toPixelMatrix() {
+        Pixel[] palette = getPalette();
+        Pixel[][] pixelMatrix = new Pixel[width][height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                pixelMatrix[x][y] = palette[getIndex(x, y)];
+            }
+        }
+        return pixelMatrix;
+    }
+
+    // the packed index rows for palettes of at most 256 colors, rowBytes
+    // apart; this is the backing array. null for larger palettes.
+    byte[] indexBytes() {
+        return bytes;
+    }
+
+    // bytes per packed index row, 0 for palettes over 256 colors
+    int getRowBytes() {
+        return rowBytes;
+    }
+
+    // copies the indices of row y into row, one byte each; only for palettes
+    // of at most 256 colors
+    void unpackRow(int y, byte[] row) {
+        for (int x = 0; x < width; x++) {
+            row[x] = (byte) getIndex(x, y);
+        }
+    }
+
+    /**
+     * Writes the image as a BMP file. Palettes of up to 256 colors are
+     * written as indexed images straight from the packed index rows,
+     * optionally run-length encoded; larger ones as 24 bit images.
+     *
+     * @param fileName the file to write
+     * @param compress whether to run-length encode indexed output
+     * @throws IOException if the file cannot be written
+     */
+    public void writeBMP(String fileName, boolean compress) throws IOException {
+        if (paletteRGB.length > 256) {
+            Util.saveRasterToBitmap(fileName, toRaster());
+            return;
+        }
+        BmpWriter.writeIndexed(Paths.get(fileName), this, compress);
+    }
+}
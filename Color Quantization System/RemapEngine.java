@@ -0,0 +1,114 @@
+
+
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+/**
+ * Replaces every pixel of a raster with its color (or palette index) in a
+ * color map. The raster is cut into bands of whole rows of about TILE_PIXELS
+ * pixels each; bands are remapped in parallel on the common fork/join pool,
+ * each reading and writing one contiguous stretch of memory. Neighbouring
+ * pixels usually share a color, so each band also remembers its last lookup.
+ *
+ * Output goes into a buffer the caller allocates, which can be reused from
+ * one image to the next.
+ */
+final class RemapEngine {
+    // pixels per band; smaller images are remapped on the calling thread
+    static final int TILE_PIXELS = 1 << 16;
+
+    private RemapEngine() {
+
+    }
+
+    /**
+     * Writes the palette color of every pixel of source into target.
+     *
+     * @param source   the image to remap
+     * @param colorMap a color map covering every color of source
+     * @param target   a raster of the same size as source; may be source
+     */
+    static void remap(PackedRaster source, PackedColorMap colorMap, PackedRaster target) {
+        checkSize(source.getWidth(), source.getHeight(), target.getWidth(), target.getHeight());
+        int[] paletteRGB = colorMap.getPaletteRGB();
+        int[] in = source.getData();
+        int[] out = target.getData();
+        int width = source.getWidth();
+
+        bands(source).forEach(band -> {
+            int from = band[0] * width;
+            int to = band[1] * width;
+            int lastColor = -1;
+            int lastMapped = 0;
+            for (int i = from; i < to; i++) {
+                int rgb = in[i];
+                if (rgb != lastColor) {
+                    lastColor = rgb;
+                    lastMapped = paletteRGB[indexOf(colorMap, rgb)];
+                }
+                out[i] = lastMapped;
+            }
+        });
+    }
+
+    /**
+     * Writes the palette index of every pixel of source into target. Bands
+     * are whole rows, so bit-packed rows are never shared between threads.
+     *
+     * @param source   the image to remap
+     * @param colorMap a color map covering every color of source
+     * @param target   an image of the same size as source over the palette
+     *                 of colorMap
+     */
+    static void remap(PackedRaster source, PackedColorMap colorMap, QuantizedImage target) {
+        checkSize(source.getWidth(), source.getHeight(), target.getWidth(), target.getHeight());
+        int[] in = source.getData();
+        int width = source.getWidth();
+
+        bands(source).forEach(band -> {
+            int lastColor = -1;
+            int lastIndex = 0;
+            for (int y = band[0]; y < band[1]; y++) {
+                int rowStart = y * width;
+                for (int x = 0; x < width; x++) {
+                    int rgb = in[rowStart + x];
+                    if (rgb != lastColor) {
+                        lastColor = rgb;
+                        lastIndex = indexOf(colorMap, rgb);
+                    }
+                    target.setIndex(x, y, lastIndex);
+                }
+            }
+        });
+    }
+
+    // like PackedColorMap.indexOf, but a color missing from the map is an
+    // error rather than -1
+    private static int indexOf(PackedColorMap colorMap, int rgb) {
+        int index = colorMap.indexOf(rgb);
+        if (index < 0) {
+            throw new IllegalArgumentException("Color " + Integer.toHexString(rgb) + " is not in the color map");
+        }
+        return index;
+    }
+
+    // [firstRow, endRow) of every band, in parallel for large images
+    private static Stream<int[]> bands(PackedRaster source) {
+        int width = Math.max(1, source.getWidth());
+        int height = source.getHeight();
+        int rowsPerBand = Math.max(1, TILE_PIXELS / width);
+        int bandCount = (height + rowsPerBand - 1) / rowsPerBand;
+
+        IntStream bands = IntStream.range(0, bandCount);
+        if (bandCount > 1) {
+            bands = bands.parallel();
+        }
+        return bands.mapToObj(band -> new int[] {band * rowsPerBand, Math.min(height, (band + 1) * rowsPerBand)});
+    }
+
+    private static void checkSize(int width, int height, int targetWidth, int targetHeight) {
+        if (width != targetWidth || height != targetHeight) {
+            throw new IllegalArgumentException("Target must be the same size as the source");
+        }
+    }
+}
@@ -0,0 +1,132 @@
+
+
+/**
+ * Quantizes the frames of an animation or video one after another. Each
+ * frame's clustering starts from the final palette of the frame before, so
+ * when consecutive frames look alike k-means only has to confirm the palette
+ * and stops after an iteration or two. When a frame's colors have drifted
+ * too far from the previous frame's (a scene cut, say), the palette is
+ * seeded from scratch instead.
+ *
+ * Drift is the total variation distance between the two frames' histograms
+ * at 4 bits per channel: the share of pixels that would have to move to
+ * another coarse bin to turn one into the other, from 0 for the same color
+ * distribution to 1 for disjoint ones.
+ *
+ * A SequenceQuantizer remembers the previous frame, so it is meant for one
+ * sequence on one thread at a time.
+ */
+public class SequenceQuantizer {
+    // coarse bins for measuring drift have 4 bits per channel
+    private static final int DRIFT_BITS = 4;
+
+    private ColorMapGenerator_Inter colorMapGenerator;
+    private int numColors;
+    private double driftThreshold;
+
+    // the previous frame's final palette and coarse histogram share of each
+    // bin; null before the first frame
+    private Pixel[] previousPalette;
+    private double[] previousShares;
+
+    // what happened to the most recent frame
+    private boolean lastReseeded;
+    private double lastDrift;
+
+    public SequenceQuantizer(DistanceMetric_Inter metric, int numColors) {
+
+        this(new ClusteringMapGenerator(metric), numColors, 0.25);
+
+    }
+
+    // gen should refine the palette it is given, like ClusteringMapGenerator
+    // or MiniBatchMapGenerator; frames drifting more than driftThreshold
+    // (between 0 and 1) from the previous one are reseeded
+    public SequenceQuantizer(ColorMapGenerator_Inter gen, int numColors, double driftThreshold) {
+
+        if (numColors <= 0) {
+            throw new IllegalArgumentException("Number of colors must be positive");
+        }
+        if (!(driftThreshold >= 0 && driftThreshold <= 1)) {
+            throw new IllegalArgumentException("Drift threshold must be between 0 and 1");
+        }
+        this.colorMapGenerator = gen;
+        this.numColors = numColors;
+        this.driftThreshold = driftThreshold;
+
+    }
+
+    /**
+     * Quantizes the next frame of the sequence.
+     *
+     * @param frame the next frame
+     * @return the palette together with the palette index of every pixel
+     */
+    public QuantizedImage quantizeFrame(PackedRaster frame) {
+        ColorHistogram histogram = ColorHistogram.of(frame);
+        double[] shares = shares(histogram);
+        lastDrift = (previousShares == null) ? 1 : drift(previousShares, shares);
+
+        // a palette that came out short (the frame before had fewer colors
+        // than numColors) is reseeded too, in case this frame has more
+        lastReseeded = previousPalette == null || lastDrift > driftThreshold || isShort(previousPalette);
+        Pixel[] initialPalette = lastReseeded ? colorMapGenerator.generateColorPalette(histogram, numColors)
+                : previousPalette;
+        PackedColorMap colorMap = colorMapGenerator.generatePackedColorMap(histogram, initialPalette);
+
+        QuantizedImage quantized = new QuantizedImage(frame.getWidth(), frame.getHeight(), colorMap.getPaletteRGB());
+        RemapEngine.remap(frame, colorMap, quantized);
+
+        previousPalette = colorMap.getPalette();
+        previousShares = shares;
+        return quantized;
+    }
+
+    // forgets the previous frame, so the next one is seeded from scratch
+    public void reset() {
+        previousPalette = null;
+        previousShares = null;
+    }
+
+    // whether the most recent frame was seeded from scratch rather than from
+    // the frame before
+    public boolean wasLastFrameReseeded() {
+        return lastReseeded;
+    }
+
+    // drift of the most recent frame from the one before; 1 for the first
+    public double getLastDrift() {
+        return lastDrift;
+    }
+
+    private static double[] shares(ColorHistogram histogram) {
+        long[] bins = histogram.coarseCounts(DRIFT_BITS);
+        double total = Math.max(1, histogram.getTotalCount());
+        double[] shares = new double[bins.length];
+        for (int bin = 0; bin < bins.length; bin++) {
+            shares[bin] = bins[bin] / total;
+        }
+        return shares;
+    }
+
+    // total variation distance: half the summed difference in share
+    private static double drift(double[] before, double[] after) {
+        double sum = 0;
+        for (int bin = 0; bin < before.length; bin++) {
+            sum += Math.abs(before[bin] - after[bin]);
+        }
+        return sum / 2;
+    }
+
+    private boolean isShort(Pixel[] palette) {
+        if (palette.length < numColors) {
+            return true;
+        }
+        for (Pixel p : palette) {
+            if (p == null) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -1,6 +1,6 @@
 
 
-public class SquaredEuclideanMetric implements DistanceMetric_Inter {
+public class SquaredEuclideanMetric implements ProjectedMetric_Inter {
     /**
      * Computes the distance between the RGB values of two pixels. Different
      * implementations may use different formulas for calculating distance.
@@ -20,4 +20,94 @@ public class SquaredEuclideanMetric implements DistanceMetric_Inter {
     
     }
 
+    @Override
+    public double colorDistance(int rgb1, int rgb2) {
+        int redDiff = ((rgb1 >> 16) & 0xFF) - ((rgb2 >> 16) & 0xFF);
+        int greenDiff = ((rgb1 >> 8) & 0xFF) - ((rgb2 >> 8) & 0xFF);
+        int blueDiff = (rgb1 & 0xFF) - (rgb2 & 0xFF);
+        return (redDiff*redDiff)+(greenDiff*greenDiff)+(blueDiff*blueDiff);
+    }
+
+    // one pass over the channel arrays; plain int math on parallel arrays,
+    // which the JIT turns into SIMD instructions
+    @Override
+    public void colorDistances(int rgb, PaletteBuffer palette, double[] distances) {
+        int red = (rgb >> 16) & 0xFF;
+        int green = (rgb >> 8) & 0xFF;
+        int blue = rgb & 0xFF;
+        int[] reds = palette.reds();
+        int[] greens = palette.greens();
+        int[] blues = palette.blues();
+        for (int n = 0, size = palette.size(); n < size; n++) {
+            int redDiff = red - reds[n];
+            int greenDiff = green - greens[n];
+            int blueDiff = blue - blues[n];
+            distances[n] = (redDiff*redDiff)+(greenDiff*greenDiff)+(blueDiff*blueDiff);
+        }
+    }
+
+    // the same loop for each color, writing straight into its row of the
+    // block
+    @Override
+    public void colorDistances(int[] colors, int from, int to, PaletteBuffer palette, double[] distances) {
+        int[] reds = palette.reds();
+        int[] greens = palette.greens();
+        int[] blues = palette.blues();
+        int size = palette.size();
+        for (int p = from; p < to; p++) {
+            int red = (colors[p] >> 16) & 0xFF;
+            int green = (colors[p] >> 8) & 0xFF;
+            int blue = colors[p] & 0xFF;
+            int row = (p - from) * size;
+            for (int n = 0; n < size; n++) {
+                int redDiff = red - reds[n];
+                int greenDiff = green - greens[n];
+                int blueDiff = blue - blues[n];
+                distances[row + n] = (redDiff*redDiff)+(greenDiff*greenDiff)+(blueDiff*blueDiff);
+            }
+        }
+    }
+
+    // features are the three channels as floats; every sum of squared
+    // channel differences fits a float exactly
+    @Override
+    public int featureDimension() {
+        return 3;
+    }
+
+    @Override
+    public void project(int[] colors, int from, int to, float[] features, int offset) {
+        for (int p = from; p < to; p++) {
+            int f = offset + 3 * (p - from);
+            features[f] = (colors[p] >> 16) & 0xFF;
+            features[f + 1] = (colors[p] >> 8) & 0xFF;
+            features[f + 2] = colors[p] & 0xFF;
+        }
+    }
+
+    @Override
+    public void project(int rgb, float[] features, int offset) {
+        features[offset] = (rgb >> 16) & 0xFF;
+        features[offset + 1] = (rgb >> 8) & 0xFF;
+        features[offset + 2] = rgb & 0xFF;
+    }
+
+    @Override
+    public void featureDistances(float[] query, int queryOffset, float[] targets, int from, int to, double[] distances) {
+        float red = query[queryOffset];
+        float green = query[queryOffset + 1];
+        float blue = query[queryOffset + 2];
+        for (int n = from; n < to; n++) {
+            float redDiff = red - targets[3 * n];
+            float greenDiff = green - targets[3 * n + 1];
+            float blueDiff = blue - targets[3 * n + 2];
+            distances[n] = (redDiff*redDiff)+(greenDiff*greenDiff)+(blueDiff*blueDiff);
+        }
+    }
+
+    @Override
+    public boolean isSquaredEuclidean() {
+        return true;
+    }
+
 }
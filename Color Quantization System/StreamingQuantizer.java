@@ -0,0 +1,111 @@
+
+
+import java.io.IOException;
+
+/**
+ * Quantizes BMP files that are too large to hold in memory. The image is read
+ * twice, one strip of rows at a time. The first pass counts colors into a
+ * histogram, and the palette and color map are built from it with any
+ * ColorMapGenerator_Inter. The second pass remaps each strip and writes it
+ * straight to the output file.
+ *
+ * Memory use is one strip of input and output plus the histogram (a 2^24
+ * entry count table while counting), however large the image is.
+ *
+ * The output file is limited to 2 GB by the 32 bit size fields of the BMP
+ * format. That is about 700 megapixels at 24 bits per pixel (more than 256
+ * colors), 2 gigapixels at 8 bits (up to 256 colors) and proportionally more
+ * at 4 and 1 bit. Images over the limit are refused before the first pass.
+ */
+public class StreamingQuantizer {
+    private ColorMapGenerator_Inter colorMapGenerator;
+    private int stripRows;
+
+    public StreamingQuantizer(ColorMapGenerator_Inter gen) {
+
+        this(gen, 256);
+
+    }
+
+    // stripRows is how many rows of the image are held at once
+    public StreamingQuantizer(ColorMapGenerator_Inter gen, int stripRows) {
+
+        if (stripRows <= 0) {
+            throw new IllegalArgumentException("Strips must hold at least one row");
+        }
+        this.colorMapGenerator = gen;
+        this.stripRows = stripRows;
+
+    }
+
+    /**
+     * Reads a BMP file strip by strip and counts its colors. Counts that would
+     * overflow an int stop at Integer.MAX_VALUE.
+     *
+     * @param inputFile an uncompressed 24 or 32 bit BMP file
+     * @return the color histogram of the image
+     * @throws IOException if the file cannot be read
+     */
+    public ColorHistogram histogram(String inputFile) throws IOException {
+        try (BmpReader.StripReader reader = new BmpReader.StripReader(inputFile)) {
+            int[] table = new int[1 << 24];
+            int firstColor = -1;
+            for (int firstRow = 0; firstRow < reader.getHeight(); firstRow += stripRows) {
+                int rows = Math.min(stripRows, reader.getHeight() - firstRow);
+                int[] strip = reader.readStrip(firstRow, rows).getData();
+                if (firstRow == 0) {
+                    firstColor = strip[0];
+                }
+                for (int rgb : strip) {
+                    if (table[rgb] != Integer.MAX_VALUE) {
+                        table[rgb]++;
+                    }
+                }
+            }
+            return ColorHistogram.fromDenseCounts(table, firstColor);
+        }
+    }
+
+    /**
+     * Quantizes a BMP file into another BMP file without holding either image
+     * in memory. Up to 256 colors are written as an indexed image.
+     *
+     * @param inputFile  an uncompressed 24 or 32 bit BMP file
+     * @param outputFile the file to write the quantized image to
+     * @param numColors  number of colors to use for color quantization
+     * @return the color map that was applied
+     * @throws IOException if either file cannot be read or written, or if the
+     *                     output would be larger than a BMP file can be
+     */
+    public PackedColorMap quantize(String inputFile, String outputFile, int numColors) throws IOException {
+        if (numColors <= 0) {
+            throw new IllegalArgumentException("Number of colors must be positive");
+        }
+        // the palette has at most numColors entries, so this bounds the
+        // output size before the image is read even once
+        try (BmpReader.StripReader reader = new BmpReader.StripReader(inputFile)) {
+            long size = BmpWriter.StripWriter.fileSize(reader.getWidth(), reader.getHeight(), numColors);
+            if (size > BmpWriter.MAX_FILE_SIZE) {
+                throw new IOException("Quantizing " + reader.getWidth() + "x" + reader.getHeight() + " pixels to "
+                        + numColors + " colors gives a " + size + " byte BMP file, over the 2 GB limit");
+            }
+        }
+        ColorHistogram histogram = histogram(inputFile);
+        Pixel[] colorPalette = colorMapGenerator.generateColorPalette(histogram, numColors);
+        PackedColorMap colorMap = colorMapGenerator.generatePackedColorMap(histogram, colorPalette);
+        int[] paletteRGB = colorMap.getPaletteRGB();
+
+        try (BmpReader.StripReader reader = new BmpReader.StripReader(inputFile);
+                BmpWriter.StripWriter writer = new BmpWriter.StripWriter(outputFile, reader.getWidth(),
+                        reader.getHeight(), paletteRGB)) {
+            int width = reader.getWidth();
+            for (int firstRow = 0; firstRow < reader.getHeight(); firstRow += stripRows) {
+                int rows = Math.min(stripRows, reader.getHeight() - firstRow);
+                QuantizedImage strip = new QuantizedImage(width, rows, paletteRGB);
+                RemapEngine.remap(reader.readStrip(firstRow, rows), colorMap, strip);
+                writer.writeStrip(firstRow, strip);
+            }
+        }
+        return colorMap;
+    }
+}
@@ -1,6 +1,5 @@
 
 
-import java.awt.Color;
 import java.awt.image.BufferedImage;
 import java.io.BufferedWriter;
 import java.io.File;
@@ -16,19 +15,20 @@ import javax.imageio.ImageIO;
 public class Util {
 
     public static Pixel[][] convertBitmapToPixelMatrix(BufferedImage image) {
-        Pixel[][] pixelMatrix = new Pixel[image.getWidth()][image.getHeight()];
+        return convertBitmapToRaster(image).toPixelMatrix();
+    }
 
-        for (int x = 0; x < image.getWidth(); x++) {
-            for (int y = 0; y < image.getHeight(); y++) {
-                int rgb = image.getRGB(x, y);
-                int red = (rgb >> 16) & 0xFF;
-                int green = (rgb >> 8) & 0xFF;
-                int blue = rgb & 0xFF;
-                pixelMatrix[x][y] = new Pixel(red, green, blue);
-            }
+    public static PackedRaster convertBitmapToRaster(BufferedImage image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int[] data = image.getRGB(0, 0, width, height, null, 0, width);
+
+        // drop the alpha channel so every entry is a plain 0xRRGGBB value
+        for (int i = 0; i < data.length; i++) {
+            data[i] &= 0xFFFFFF;
         }
 
-        return pixelMatrix;
+        return new PackedRaster(width, height, data);
     }
 
     public static void savePixelMatrixToFile(String filePath, Pixel[][] matrix) {
@@ -53,17 +53,14 @@ public class Util {
     }
 
     public static void savePixelMatrixToBitmap(String filePath, Pixel[][] pixelMatrix) {
-        int width = pixelMatrix.length;
-        int height = pixelMatrix[0].length;
+        saveRasterToBitmap(filePath, PackedRaster.fromPixelMatrix(pixelMatrix));
+    }
+
+    public static void saveRasterToBitmap(String filePath, PackedRaster raster) {
+        int width = raster.getWidth();
+        int height = raster.getHeight();
         BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
-        Pixel pixel;
-        for (int y = 0; y < height; y++) {
-            for (int x = 0; x < width; x++) {
-                pixel = pixelMatrix[x][y];
-                Color color = new Color(pixel.getRed(), pixel.getGreen(), pixel.getBlue());
-                image.setRGB(x, y, color.getRGB());
-            }
-        }
+        image.setRGB(0, 0, width, height, raster.getData(), 0, width);
         try {
             File file = new File(filePath);
             ImageIO.write(image, "bmp", file);
@@ -0,0 +1,257 @@
+
+
+import java.util.Map;
+
+/**
+ * Xiaolin Wu's variance-minimizing quantizer (Graphics Gems II, 1991). One
+ * pass over the histogram fills 33x33x33 tables of cumulative moments
+ * (pixel count, channel sums and the sum of squared channels) over colors
+ * reduced to five bits per channel. The sums of any box of that grid can then
+ * be read in constant time, so boxes are cut greedily, always splitting the
+ * box with the largest variance at the plane that removes the most of it.
+ * The palette is close to what k-means finds for a fraction of the cost, and
+ * it is a good seed for ClusteringMapGenerator.
+ */
+public class WuMapGenerator implements ColorMapGenerator_Inter {
+    // grid cells per channel, plus a row of zeros at index 0
+    private static final int SIDE = 33;
+
+    public WuMapGenerator() {
+
+    }
+
+    /**
+     * Produces an initial palette. For bucketing implementations, the initial
+     * palette will be the centers of the evenly-divided buckets. For clustering
+     * implementations, the initial palette will be the initial centroids. When
+     * needed, a distance metric should be specified when the color map
+     * generator is constructed.
+     *
+     * @param pixelArray the 2D Pixel array that represents a bitmap image
+     * @param numColors  the number of desired colors in the palette
+     * @return a Pixel array containing numColors elements
+     */
+    public Pixel[] generateColorPalette(Pixel[][] pixelArray, int numColors) {
+        return generateColorPalette(ColorHistogram.of(PackedRaster.fromPixelMatrix(pixelArray)), numColors);
+    }
+
+    // when the image cannot be cut into numColors boxes, the palette ends with
+    // null entries
+    @Override
+    public Pixel[] generateColorPalette(ColorHistogram histogram, int numColors) {
+        if (numColors <= 0) {
+            throw new IllegalArgumentException("Number of colors must be positive");
+        }
+        Pixel[] palette = new Pixel[numColors];
+        if (histogram.isEmpty()) {
+            return palette;
+        }
+
+        Moments moments = new Moments(histogram);
+        Box[] boxes = new Box[numColors];
+        double[] variance = new double[numColors];
+        boxes[0] = new Box();
+        variance[0] = moments.variance(boxes[0]);
+        int boxCount = 1;
+
+        while (boxCount < numColors) {
+            // split the box with the largest variance
+            int next = 0;
+            for (int i = 1; i < boxCount; i++) {
+                if (variance[i] > variance[next]) {
+                    next = i;
+                }
+            }
+            if (variance[next] <= 0) {
+                break;
+            }
+            Box cut = moments.cut(boxes[next]);
+            if (cut == null) {
+                variance[next] = 0;
+                continue;
+            }
+            boxes[boxCount] = cut;
+            variance[next] = moments.variance(boxes[next]);
+            variance[boxCount] = moments.variance(cut);
+            boxCount++;
+        }
+
+        for (int i = 0; i < boxCount; i++) {
+            palette[i] = moments.meanColor(boxes[i]);
+        }
+        return palette;
+    }
+
+    /**
+     * Computes the reduced color map. For bucketing implementations, this will
+     * map each color to the center of its bucket. For clustering
+     * implementations, this will map each color to its final centroid. When
+     * needed, a distance metric should be specified when the color map
+     * generator is constructed.
+     *
+     * @param pixelArray          the pixels array that represents a bitmap image
+     * @param initialColorPalette an initial color palette, such as those
+     *                            generated by generateColorPalette, represented as
+     *                            an array of Pixels
+     * @return A Map that maps each distinct color in pixelArray to a final
+     *         color
+     */
+    public Map<Pixel, Pixel> generateColorMap(Pixel[][] pixelArray, Pixel[] initialColorPalette) {
+        ColorHistogram histogram = ColorHistogram.of(PackedRaster.fromPixelMatrix(pixelArray));
+        return generatePackedColorMap(histogram, initialColorPalette).toPixelMap();
+    }
+
+    // each color goes to its nearest palette entry
+    @Override
+    public PackedColorMap generatePackedColorMap(ColorHistogram histogram, Pixel[] initialColorPalette) {
+        return new PaletteIndex(new SquaredEuclideanMetric(), initialColorPalette).mapColors(histogram);
+    }
+
+    // a box of grid cells; each range runs from lower (exclusive) to upper
+    // (inclusive), so the whole grid is (0, 32]
+    private static final class Box {
+        final int[] lower = {0, 0, 0};
+        final int[] upper = {SIDE - 1, SIDE - 1, SIDE - 1};
+
+        int cellCount() {
+            return (upper[0] - lower[0]) * (upper[1] - lower[1]) * (upper[2] - lower[2]);
+        }
+    }
+
+    private static final class Moments {
+        private final long[] weight = new long[SIDE * SIDE * SIDE];
+        private final long[] red = new long[SIDE * SIDE * SIDE];
+        private final long[] green = new long[SIDE * SIDE * SIDE];
+        private final long[] blue = new long[SIDE * SIDE * SIDE];
+        private final long[] squares = new long[SIDE * SIDE * SIDE];
+
+        Moments(ColorHistogram histogram) {
+            int[] colors = histogram.getColors();
+            int[] counts = histogram.getCounts();
+            for (int i = 0; i < colors.length; i++) {
+                int r = (colors[i] >> 16) & 0xFF;
+                int g = (colors[i] >> 8) & 0xFF;
+                int b = colors[i] & 0xFF;
+                long count = counts[i];
+                int cell = cell((r >> 3) + 1, (g >> 3) + 1, (b >> 3) + 1);
+                weight[cell] += count;
+                red[cell] += count * r;
+                green[cell] += count * g;
+                blue[cell] += count * b;
+                squares[cell] += count * (r * r + g * g + b * b);
+            }
+
+            // running sums along each axis in turn make every cell hold the
+            // total of the box from the origin up to it
+            for (long[] table : new long[][] {weight, red, green, blue, squares}) {
+                accumulate(table, SIDE * SIDE);
+                accumulate(table, SIDE);
+                accumulate(table, 1);
+            }
+        }
+
+        private static void accumulate(long[] table, int stride) {
+            for (int i = 0; i < table.length; i++) {
+                if ((i / stride) % SIDE != 0) {
+                    table[i] += table[i - stride];
+                }
+            }
+        }
+
+        private static int cell(int r, int g, int b) {
+            return (r * SIDE + g) * SIDE + b;
+        }
+
+        // the sum of table over box, by inclusion-exclusion on its corners
+        private static long volume(Box box, long[] table) {
+            int r0 = box.lower[0], r1 = box.upper[0];
+            int g0 = box.lower[1], g1 = box.upper[1];
+            int b0 = box.lower[2], b1 = box.upper[2];
+            return table[cell(r1, g1, b1)] - table[cell(r1, g1, b0)] - table[cell(r1, g0, b1)] + table[cell(r1, g0, b0)]
+                    - table[cell(r0, g1, b1)] + table[cell(r0, g1, b0)] + table[cell(r0, g0, b1)]
+                    - table[cell(r0, g0, b0)];
+        }
+
+        // the sum of table over the part of box at or below position on axis
+        private static long lowerVolume(Box box, int axis, int position, long[] table) {
+            int saved = box.upper[axis];
+            box.upper[axis] = position;
+            long sum = volume(box, table);
+            box.upper[axis] = saved;
+            return sum;
+        }
+
+        // weighted sum of squared distances from the box's colors to their mean
+        double variance(Box box) {
+            if (box.cellCount() <= 1) {
+                // a single cell cannot be cut any further
+                return 0;
+            }
+            long w = volume(box, weight);
+            if (w == 0) {
+                return 0;
+            }
+            double r = volume(box, red);
+            double g = volume(box, green);
+            double b = volume(box, blue);
+            return volume(box, squares) - (r * r + g * g + b * b) / w;
+        }
+
+        // Cuts box in two at the plane that leaves the least total variance,
+        // shrinking box to the lower half and returning the upper half, or
+        // returns null when no plane leaves pixels on both sides.
+        Box cut(Box box) {
+            long wholeW = volume(box, weight);
+            long wholeR = volume(box, red);
+            long wholeG = volume(box, green);
+            long wholeB = volume(box, blue);
+
+            double best = -1;
+            int bestAxis = -1;
+            int bestPosition = -1;
+            for (int axis = 0; axis < 3; axis++) {
+                for (int position = box.lower[axis] + 1; position < box.upper[axis]; position++) {
+                    long lowW = lowerVolume(box, axis, position, weight);
+                    long highW = wholeW - lowW;
+                    if (lowW == 0 || highW == 0) {
+                        continue;
+                    }
+                    double lowR = lowerVolume(box, axis, position, red);
+                    double lowG = lowerVolume(box, axis, position, green);
+                    double lowB = lowerVolume(box, axis, position, blue);
+                    double highR = wholeR - lowR;
+                    double highG = wholeG - lowG;
+                    double highB = wholeB - lowB;
+                    // maximizing this is the same as minimizing the variance
+                    // left in the two halves
+                    double score = (lowR * lowR + lowG * lowG + lowB * lowB) / lowW
+                            + (highR * highR + highG * highG + highB * highB) / highW;
+                    if (score > best) {
+                        best = score;
+                        bestAxis = axis;
+                        bestPosition = position;
+                    }
+                }
+            }
+            if (bestAxis < 0) {
+                return null;
+            }
+
+            Box upperHalf = new Box();
+            for (int axis = 0; axis < 3; axis++) {
+                upperHalf.lower[axis] = box.lower[axis];
+                upperHalf.upper[axis] = box.upper[axis];
+            }
+            upperHalf.lower[bestAxis] = bestPosition;
+            box.upper[bestAxis] = bestPosition;
+            return upperHalf;
+        }
+
+        Pixel meanColor(Box box) {
+            double w = volume(box, weight);
+            return new Pixel((int) Math.round(volume(box, red) / w),
+                    (int) Math.round(volume(box, green) / w),
+                    (int) Math.round(volume(box, blue) / w));
+        }
+    }
+}